@@ -0,0 +1,220 @@
+package net.jjc1138.android.scrobbler;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import android.util.Log;
+
+/**
+ * The start times of the entries that the server has accepted, so that we
+ * never submit an entry again once it has been acknowledged, even if the
+ * record of that in the QueueStore was lost, or the entry was stored again
+ * (for example by migrating a legacy queue file that we didn't manage to
+ * delete). Start times are effectively unique, so they identify entries
+ * across stores and restarts where sequence numbers can't.
+ *
+ * The whole index is rewritten after every batch, to a temporary file that
+ * is then renamed over the old one, so a checkpoint is either completely
+ * there or not at all. To keep that cheap, it only remembers the most recent
+ * acknowledgements: the server won't accept anything that's older than that
+ * anyway.
+ *
+ * The file looks like this:
+ *  int    MAGIC
+ *  int    count
+ *  long   the oldest start time
+ *  varint the difference from each start time to the next, (count - 1) times
+ *  int    CRC32 of everything before it
+ */
+final class AckIndex {
+	private static final int MAGIC = 0x41434b31; // "ACK1"
+	// The server rejects submissions that are more than two weeks old.
+	static final long RETENTION = 14L * 24 * 60 * 60 * 1000;
+	static final int MAX_ENTRIES = 4096;
+
+	private final File file;
+	private final File temp;
+
+	// These are guarded by this object's lock. times is sorted, and only the
+	// first size elements are used.
+	private long[] times = new long[16];
+	private int size = 0;
+
+	AckIndex(File dir, String name) {
+		file = new File(dir, name);
+		temp = new File(dir, name + ".tmp");
+	}
+
+	/**
+	 * Reads the last checkpoint. If there isn't one, or it's unreadable, then
+	 * the index starts off empty.
+	 */
+	synchronized void load() {
+		size = 0;
+		if (!file.exists()) {
+			return;
+		}
+		try {
+			final byte[] data = new byte[(int) file.length()];
+			final DataInputStream in = new DataInputStream(
+				new BufferedInputStream(new FileInputStream(file)));
+			try {
+				in.readFully(data);
+			} finally {
+				in.close();
+			}
+			decode(data);
+		} catch (IOException e) {
+			Log.w(ScrobblerService.LOG_TAG,
+				"Couldn't read the acknowledgement index.");
+			size = 0;
+		}
+	}
+
+	private void decode(byte[] data) throws IOException {
+		if (data.length < 4) {
+			throw new EOFException();
+		}
+		final CRC32 crc = new CRC32();
+		crc.update(data, 0, data.length - 4);
+		final DataInputStream in =
+			new DataInputStream(new ByteArrayInputStream(data));
+		if (in.readInt() != MAGIC) {
+			throw new IOException("Bad magic number");
+		}
+		final int count = in.readInt();
+		if (count < 0 || count > MAX_ENTRIES) {
+			throw new IOException("Bad count");
+		}
+		times = new long[Math.max(count, 16)];
+		long t = count == 0 ? 0 : in.readLong();
+		for (int i = 0; i < count; ++i) {
+			if (i > 0) {
+				t += readVarint(in);
+			}
+			times[i] = t;
+		}
+		if (in.readInt() != (int) crc.getValue()) {
+			throw new IOException("Bad checksum");
+		}
+		size = count;
+	}
+
+	private static long readVarint(DataInputStream in) throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			final int b = in.readUnsignedByte();
+			value |= (long) (b & 0x7f) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("Bad varint");
+	}
+
+	private static void writeVarint(DataOutputStream out, long value)
+		throws IOException {
+
+		while ((value & ~0x7fL) != 0) {
+			out.writeByte((int) (value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		out.writeByte((int) value);
+	}
+
+	synchronized boolean contains(long startTime) {
+		return Arrays.binarySearch(times, 0, size, startTime) >= 0;
+	}
+
+	synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * Adds the start times of the entries in the batch, and checkpoints the
+	 * index.
+	 */
+	synchronized void acknowledge(List<QueueEntry> batch) throws IOException {
+		if (size + batch.size() > times.length) {
+			final long[] larger =
+				new long[Math.max(times.length * 2, size + batch.size())];
+			System.arraycopy(times, 0, larger, 0, size);
+			times = larger;
+		}
+		for (QueueEntry e : batch) {
+			final long t = e.getStartTime();
+			int i = Arrays.binarySearch(times, 0, size, t);
+			if (i >= 0) {
+				continue;
+			}
+			i = -i - 1;
+			System.arraycopy(times, i, times, i + 1, size - i);
+			times[i] = t;
+			++size;
+		}
+		prune();
+		checkpoint();
+	}
+
+	// Forgets the acknowledgements that are too old to matter, or that
+	// there's no room for.
+	private void prune() {
+		if (size == 0) {
+			return;
+		}
+		final long oldest = times[size - 1] - RETENTION;
+		int from = 0;
+		while (from < size && (times[from] < oldest ||
+			size - from > MAX_ENTRIES)) {
+
+			++from;
+		}
+		if (from > 0) {
+			System.arraycopy(times, from, times, 0, size - from);
+			size -= from;
+		}
+	}
+
+	private void checkpoint() throws IOException {
+		final ByteArrayOutputStream bos =
+			new ByteArrayOutputStream(4 + 4 + 8 + size * 3 + 4);
+		final DataOutputStream out = new DataOutputStream(bos);
+		out.writeInt(MAGIC);
+		out.writeInt(size);
+		for (int i = 0; i < size; ++i) {
+			if (i == 0) {
+				out.writeLong(times[0]);
+			} else {
+				writeVarint(out, times[i] - times[i - 1]);
+			}
+		}
+		out.flush();
+		final CRC32 crc = new CRC32();
+		final byte[] body = bos.toByteArray();
+		crc.update(body);
+		out.writeInt((int) crc.getValue());
+		out.close();
+
+		final FileOutputStream fos = new FileOutputStream(temp);
+		try {
+			fos.write(bos.toByteArray());
+			fos.getFD().sync();
+		} finally {
+			fos.close();
+		}
+		if (!temp.renameTo(file)) {
+			throw new IOException("Couldn't replace the acknowledgement index");
+		}
+	}
+}
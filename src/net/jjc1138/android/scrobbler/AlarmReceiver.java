@@ -0,0 +1,66 @@
+package net.jjc1138.android.scrobbler;
+
+import android.app.PendingIntent;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.os.PowerManager;
+
+/**
+ * Our alarms are delivered here rather than straight to the service, because
+ * the alarm manager only keeps the device awake until a receiver's
+ * onReceive() has returned, and the device could go back to sleep before the
+ * service had been started. We take a WakeLock here, and the service releases
+ * it once it's holding its own.
+ */
+public class AlarmReceiver extends BroadcastReceiver {
+	static final String EXTRA_WAKE_LOCK =
+		"net.jjc1138.android.scrobbler.wake_lock";
+
+	// This is reference counted, with one reference for each alarm that the
+	// service hasn't received yet. It's guarded by the class's lock.
+	private static PowerManager.WakeLock lock = null;
+
+	/**
+	 * Returns the PendingIntent for an alarm that starts the service with the
+	 * given action.
+	 */
+	static PendingIntent getAlarmIntent(Context context, String action) {
+		return PendingIntent.getBroadcast(context, 0,
+			new Intent(context, AlarmReceiver.class).setAction(action), 0);
+	}
+
+	@Override
+	public void onReceive(Context context, Intent intent) {
+		synchronized (AlarmReceiver.class) {
+			if (lock == null) {
+				lock = ((PowerManager) context.getApplicationContext()
+					.getSystemService(Context.POWER_SERVICE)).newWakeLock(
+						PowerManager.PARTIAL_WAKE_LOCK,
+						ScrobblerService.LOG_TAG + " alarm");
+			}
+			lock.acquire();
+		}
+		Intent i = new Intent(context, ScrobblerService.class);
+		i.setAction(intent.getAction());
+		i.putExtra(EXTRA_WAKE_LOCK, true);
+		if (context.startService(i) == null) {
+			release(i);
+		}
+	}
+
+	/**
+	 * The service calls this for every intent that it's started with, once
+	 * it has acquired its own WakeLock.
+	 */
+	static void release(Intent intent) {
+		if (!intent.getBooleanExtra(EXTRA_WAKE_LOCK, false)) {
+			return;
+		}
+		synchronized (AlarmReceiver.class) {
+			if (lock != null && lock.isHeld()) {
+				lock.release();
+			}
+		}
+	}
+}
@@ -0,0 +1,89 @@
+package net.jjc1138.android.scrobbler;
+
+/**
+ * Decides how many tracks to put in each submission, based on how the
+ * previous ones went. It keeps a window of how many bytes we're prepared to
+ * send in one request, which grows by about one track's worth after each
+ * quick success, and halves after a failure or a slow success (additive
+ * increase, multiplicative decrease). So on a good link we send the most that
+ * the protocol allows, and on a bad one we send smaller requests that are
+ * more likely to get through, and cost less to retry when they don't.
+ *
+ * The scrobble task uses this on its own thread, but the statistics are read
+ * from others, so everything is synchronized.
+ */
+final class BatchSizer {
+	// A submission that takes longer than this is treated like a failure,
+	// because the link is probably struggling.
+	static final long DEFAULT_SLOW_ROUND_TRIP = 10 * 1000;
+	// This is roughly what a track with an album and a MusicBrainz ID takes,
+	// and is used until we've seen some real submissions.
+	private static final int INITIAL_BYTES_PER_TRACK = 200;
+
+	private final int maxTracks;
+	private final long slowRoundTrip;
+
+	private long windowBytes;
+	// This is a moving average of the encoded size of each track.
+	private int bytesPerTrack = INITIAL_BYTES_PER_TRACK;
+
+	private long increases = 0;
+	private long decreases = 0;
+
+	BatchSizer(int maxTracks, long slowRoundTrip) {
+		this.maxTracks = maxTracks;
+		this.slowRoundTrip = slowRoundTrip;
+		// Start off optimistic:
+		windowBytes = (long) maxTracks * bytesPerTrack;
+	}
+
+	/**
+	 * Returns the number of tracks that should go into the next submission.
+	 * This is always between 1 and maxTracks.
+	 */
+	synchronized int getBatchSize() {
+		final long tracks = windowBytes / bytesPerTrack;
+		return (int) Math.max(1, Math.min(maxTracks, tracks));
+	}
+
+	/**
+	 * This is called when a submission of the given size has been accepted.
+	 */
+	synchronized void succeeded(int tracks, int bytes, long roundTripMillis) {
+		if (tracks > 0) {
+			// Give the latest submission a weight of a quarter:
+			bytesPerTrack = Math.max(1,
+				(bytesPerTrack * 3 + bytes / tracks) / 4);
+		}
+		if (roundTripMillis > slowRoundTrip) {
+			decrease();
+		} else if (tracks >= getBatchSize()) {
+			// Only grow if we actually used the whole window, otherwise a
+			// long run of small submissions (e.g. with the immediate mode)
+			// would grow it without telling us anything about the link.
+			windowBytes = Math.min(windowBytes + bytesPerTrack,
+				(long) maxTracks * bytesPerTrack);
+			++increases;
+		}
+	}
+
+	/**
+	 * This is called when a submission has failed.
+	 */
+	synchronized void failed() {
+		decrease();
+	}
+
+	private void decrease() {
+		windowBytes = Math.max(bytesPerTrack, windowBytes / 2);
+		++decreases;
+	}
+
+	synchronized long getIncreases() {
+		return increases;
+	}
+
+	synchronized long getDecreases() {
+		return decreases;
+	}
+}
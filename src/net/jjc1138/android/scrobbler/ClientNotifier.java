@@ -0,0 +1,176 @@
+package net.jjc1138.android.scrobbler;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.os.Handler;
+import android.os.RemoteCallbackList;
+import android.os.RemoteException;
+import android.os.SystemClock;
+
+/**
+ * Tells the registered clients (i.e. ScrobblerConfig) about changes to the
+ * service's state. Changes can be reported from any thread as often as we
+ * like: they are coalesced so that the clients are updated at most once per
+ * interval, with whatever the state is at that time. Nothing is sent if it
+ * hasn't changed since the last update, or if nobody is listening (a client
+ * that registers later is sent the current state straight away).
+ */
+final class ClientNotifier {
+	// This is roughly one frame on a 60Hz display, so the UI can't tell the
+	// difference.
+	static final long DEFAULT_INTERVAL = 16;
+
+	interface State {
+		int getQueueSize();
+		boolean isScrobbling();
+		int getLastScrobbleResult();
+	}
+
+	private final RemoteCallbackList<IScrobblerServiceNotificationHandler>
+		clients =
+		new RemoteCallbackList<IScrobblerServiceNotificationHandler>();
+	// RemoteCallbackList can't tell us how many clients it has. This can
+	// overestimate if a client dies without unregistering, which just means
+	// that we do a bit of unnecessary work.
+	private final AtomicInteger registered = new AtomicInteger();
+
+	private final Handler handler;
+	private final State state;
+	private final long interval;
+
+	private final AtomicBoolean pending = new AtomicBoolean(false);
+	// These are only used on the handler's thread:
+	private long lastDeliveryTime = 0;
+	private int lastQueueSize = -1;
+	private boolean lastScrobbling = false;
+	private int lastResult = -1;
+
+	private final AtomicLong changes = new AtomicLong();
+	private final AtomicLong coalesced = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong deliveries = new AtomicLong();
+
+	// This sends the current state to every client if it has changed since
+	// the last time, and returns false if it hadn't. It's only called on the
+	// handler's thread, so that the last state is always what every client
+	// has been sent.
+	private boolean broadcastIfChanged() {
+		final int queueSize = state.getQueueSize();
+		final boolean scrobbling = state.isScrobbling();
+		final int result = state.getLastScrobbleResult();
+		if (queueSize == lastQueueSize && scrobbling == lastScrobbling &&
+			result == lastResult) {
+
+			return false;
+		}
+		lastQueueSize = queueSize;
+		lastScrobbling = scrobbling;
+		lastResult = result;
+		lastDeliveryTime = SystemClock.uptimeMillis();
+		deliveries.incrementAndGet();
+
+		final int N = clients.beginBroadcast();
+		for (int i = 0; i < N; ++i) {
+			try {
+				clients.getBroadcastItem(i).stateChanged(
+					queueSize, scrobbling, result);
+			} catch (RemoteException e) {}
+		}
+		clients.finishBroadcast();
+		return true;
+	}
+
+	private final Runnable deliver = new Runnable() {
+		@Override
+		public void run() {
+			pending.set(false);
+			if (!broadcastIfChanged()) {
+				coalesced.incrementAndGet();
+			}
+		}
+	};
+
+	ClientNotifier(Handler handler, State state, long interval) {
+		this.handler = handler;
+		this.state = state;
+		this.interval = interval;
+	}
+
+	/**
+	 * Registers a client, and sends it the current state. This can be called
+	 * from any thread.
+	 */
+	void register(final IScrobblerServiceNotificationHandler h) {
+		if (clients.register(h)) {
+			registered.incrementAndGet();
+		}
+		handler.post(new Runnable() {
+			@Override
+			public void run() {
+				// If the state has changed then everyone is sent it,
+				// including the new client. Otherwise the new client is the
+				// only one that hasn't seen it yet.
+				if (!broadcastIfChanged()) {
+					try {
+						h.stateChanged(
+							lastQueueSize, lastScrobbling, lastResult);
+					} catch (RemoteException e) {}
+				}
+			}
+		});
+	}
+
+	void unregister(IScrobblerServiceNotificationHandler h) {
+		if (clients.unregister(h)) {
+			registered.decrementAndGet();
+		}
+	}
+
+	boolean hasClients() {
+		return registered.get() > 0;
+	}
+
+	/**
+	 * Schedules an update for the clients. This can be called from any
+	 * thread.
+	 */
+	void stateChanged() {
+		changes.incrementAndGet();
+		if (!hasClients()) {
+			dropped.incrementAndGet();
+			return;
+		}
+		if (!pending.compareAndSet(false, true)) {
+			coalesced.incrementAndGet();
+			return;
+		}
+		// lastDeliveryTime is only written on the handler's thread, so this
+		// might be slightly stale, which only affects how long we wait.
+		final long wait =
+			lastDeliveryTime + interval - SystemClock.uptimeMillis();
+		handler.postDelayed(deliver, Math.max(0, wait));
+	}
+
+	void kill() {
+		handler.removeCallbacks(deliver);
+		clients.kill();
+	}
+
+	long getChanges() {
+		return changes.get();
+	}
+
+	long getCoalesced() {
+		return coalesced.get();
+	}
+
+	long getDropped() {
+		return dropped.get();
+	}
+
+	long getDeliveries() {
+		return deliveries.get();
+	}
+}
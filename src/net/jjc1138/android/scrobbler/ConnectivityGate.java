@@ -0,0 +1,97 @@
+package net.jjc1138.android.scrobbler;
+
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.Handler;
+import android.os.SystemClock;
+
+/**
+ * Remembers whether we have a usable network, so that we don't try to scrobble
+ * (and wake the device and the radio up to do it, and then back off for hours)
+ * when we know that it can't work. A scrobble that is requested while we're
+ * offline is held, and when the network comes back we're told so that we can
+ * do it then.
+ *
+ * The state is updated by the service's CONNECTIVITY_ACTION receiver, and
+ * whenever a scrobble fails. It can be read from any thread.
+ */
+final class ConnectivityGate {
+	private final ConnectivityManager manager;
+	private final Handler handler;
+	private final Runnable opened;
+
+	private volatile boolean online;
+	// This is the uptime when a scrobble was first held, or -1 if none is.
+	// It's guarded by this object's lock, as are the counters.
+	private long heldSince = -1;
+	private long holds = 0;
+	private long gatedTime = 0;
+
+	/**
+	 * opened is posted to handler when the network comes back after a
+	 * scrobble has been held.
+	 */
+	ConnectivityGate(ConnectivityManager manager, Handler handler,
+		Runnable opened) {
+
+		this.manager = manager;
+		this.handler = handler;
+		this.opened = opened;
+		online = isConnected();
+	}
+
+	private boolean isConnected() {
+		final NetworkInfo info = manager.getActiveNetworkInfo();
+		return info != null && info.isConnected();
+	}
+
+	boolean isOnline() {
+		return online;
+	}
+
+	/**
+	 * Checks the network again, and returns whether we're online.
+	 */
+	synchronized boolean update() {
+		online = isConnected();
+		if (online && heldSince != -1) {
+			gatedTime += SystemClock.uptimeMillis() - heldSince;
+			heldSince = -1;
+			handler.post(opened);
+		}
+		return online;
+	}
+
+	/**
+	 * If we're offline then this holds a scrobble until we're back online and
+	 * returns true. Otherwise it returns false and the scrobble should go
+	 * ahead.
+	 */
+	synchronized boolean hold() {
+		if (online) {
+			return false;
+		}
+		++holds;
+		if (heldSince == -1) {
+			heldSince = SystemClock.uptimeMillis();
+		}
+		return true;
+	}
+
+	synchronized boolean isHolding() {
+		return heldSince != -1;
+	}
+
+	synchronized long getHolds() {
+		return holds;
+	}
+
+	/**
+	 * Returns the total time that scrobbles have been held for, including
+	 * any that are still being held.
+	 */
+	synchronized long getGatedTime() {
+		return gatedTime +
+			(heldSince == -1 ? 0 : SystemClock.uptimeMillis() - heldSince);
+	}
+}
@@ -0,0 +1,40 @@
+package net.jjc1138.android.scrobbler;
+
+import android.content.BroadcastReceiver;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.pm.PackageManager;
+import android.net.ConnectivityManager;
+
+/**
+ * This receiver starts our private service when a network becomes available.
+ * It is disabled unless the service stopped with tracks that it couldn't
+ * scrobble because it was offline, so that we aren't woken up by every change
+ * in connectivity.
+ */
+public class ConnectivityReceiver extends BroadcastReceiver {
+	static final String ACTION_CONNECTIVITY_CHANGED =
+		"net.jjc1138.android.scrobbler.action.CONNECTIVITY_CHANGED";
+
+	static void setEnabled(Context context, boolean enabled) {
+		context.getPackageManager().setComponentEnabledSetting(
+			new ComponentName(context, ConnectivityReceiver.class),
+			enabled ?
+				PackageManager.COMPONENT_ENABLED_STATE_ENABLED :
+				PackageManager.COMPONENT_ENABLED_STATE_DISABLED,
+			PackageManager.DONT_KILL_APP);
+	}
+
+	@Override
+	public void onReceive(Context context, Intent intent) {
+		if (intent.getBooleanExtra(
+			ConnectivityManager.EXTRA_NO_CONNECTIVITY, false)) {
+
+			return;
+		}
+		Intent i = new Intent(context, ScrobblerService.class);
+		i.setAction(ACTION_CONNECTIVITY_CHANGED);
+		context.startService(i);
+	}
+}
@@ -0,0 +1,251 @@
+package net.jjc1138.android.scrobbler;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.http.entity.AbstractHttpEntity;
+
+/**
+ * Builds an application/x-www-form-urlencoded request body directly into a
+ * byte buffer, which is reused from one request to the next. Values are
+ * encoded exactly as URLEncoder.encode(value, "UTF-8") would encode them, but
+ * without creating any intermediate Strings.
+ *
+ * The body can also be sent gzipped, for servers that accept that. The
+ * compressed copy has a buffer of its own, which is also reused.
+ */
+final class FormEncoder {
+	private static final byte[] HEX = {
+		'0', '1', '2', '3', '4', '5', '6', '7',
+		'8', '9', 'A', 'B', 'C', 'D', 'E', 'F',
+	};
+
+	private byte[] buffer = new byte[4096];
+	private int size = 0;
+
+	// This lets us reuse the buffer that the compressed copy is written to,
+	// rather than copying it out with toByteArray():
+	private static final class CompressedBuffer extends ByteArrayOutputStream {
+		CompressedBuffer() {
+			super(1024);
+		}
+
+		byte[] array() {
+			return buf;
+		}
+	}
+
+	private CompressedBuffer compressed = null;
+
+	void reset() {
+		size = 0;
+	}
+
+	int size() {
+		return size;
+	}
+
+	private void ensureCapacity(int extra) {
+		if (size + extra > buffer.length) {
+			byte[] bigger = new byte[Math.max(buffer.length * 2, size + extra)];
+			System.arraycopy(buffer, 0, bigger, 0, size);
+			buffer = bigger;
+		}
+	}
+
+	/**
+	 * Appends s without encoding it. It must only contain characters that
+	 * don't need to be encoded.
+	 */
+	FormEncoder appendRaw(String s) {
+		final int length = s.length();
+		ensureCapacity(length);
+		for (int i = 0; i < length; ++i) {
+			buffer[size++] = (byte) s.charAt(i);
+		}
+		return this;
+	}
+
+	FormEncoder appendRaw(char c) {
+		ensureCapacity(1);
+		buffer[size++] = (byte) c;
+		return this;
+	}
+
+	FormEncoder appendNumber(long n) {
+		// We work with the negative value, because Long.MIN_VALUE can't be
+		// negated:
+		if (n < 0) {
+			appendRaw('-');
+		} else {
+			n = -n;
+		}
+		// A long has at most 19 digits.
+		ensureCapacity(19);
+		final int start = size;
+		do {
+			buffer[size++] = (byte) ('0' - (n % 10));
+			n /= 10;
+		} while (n != 0);
+		for (int i = start, j = size - 1; i < j; ++i, --j) {
+			final byte t = buffer[i];
+			buffer[i] = buffer[j];
+			buffer[j] = t;
+		}
+		return this;
+	}
+
+	private void appendEscaped(int b) {
+		buffer[size++] = '%';
+		buffer[size++] = HEX[(b >> 4) & 0xf];
+		buffer[size++] = HEX[b & 0xf];
+	}
+
+	FormEncoder appendEncoded(char c) {
+		// Every char encodes to at most three escaped bytes:
+		ensureCapacity(9);
+		if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') ||
+			(c >= '0' && c <= '9') ||
+			c == '.' || c == '-' || c == '*' || c == '_') {
+
+			buffer[size++] = (byte) c;
+		} else if (c == ' ') {
+			buffer[size++] = '+';
+		} else if (c < 0x80) {
+			appendEscaped(c);
+		} else if (c < 0x800) {
+			appendEscaped(0xc0 | (c >> 6));
+			appendEscaped(0x80 | (c & 0x3f));
+		} else if (Character.isHighSurrogate(c) ||
+			Character.isLowSurrogate(c)) {
+
+			// An unpaired surrogate can't be encoded in UTF-8, so it becomes
+			// a question mark, as it would with String.getBytes():
+			appendEscaped('?');
+		} else {
+			appendEscaped(0xe0 | (c >> 12));
+			appendEscaped(0x80 | ((c >> 6) & 0x3f));
+			appendEscaped(0x80 | (c & 0x3f));
+		}
+		return this;
+	}
+
+	FormEncoder appendEncoded(String s) {
+		final int length = s.length();
+		ensureCapacity(length);
+		for (int i = 0; i < length; ++i) {
+			final char c = s.charAt(i);
+			if (Character.isHighSurrogate(c) && i + 1 < length &&
+				Character.isLowSurrogate(s.charAt(i + 1))) {
+
+				final int cp = Character.toCodePoint(c, s.charAt(i + 1));
+				++i;
+				ensureCapacity(12);
+				appendEscaped(0xf0 | (cp >> 18));
+				appendEscaped(0x80 | ((cp >> 12) & 0x3f));
+				appendEscaped(0x80 | ((cp >> 6) & 0x3f));
+				appendEscaped(0x80 | (cp & 0x3f));
+			} else {
+				appendEncoded(c);
+			}
+		}
+		return this;
+	}
+
+	/**
+	 * Appends the start of a field, e.g. "&a=". The value should be appended
+	 * next.
+	 */
+	FormEncoder appendField(char name) {
+		return appendRaw('&').appendRaw(name).appendRaw('=');
+	}
+
+	/**
+	 * Appends the start of an indexed field, e.g. "&a[3]=". The value should
+	 * be appended next.
+	 */
+	FormEncoder appendField(char name, int index) {
+		return appendRaw('&').appendRaw(name).appendRaw('[')
+			.appendNumber(index).appendRaw("]=");
+	}
+
+	/**
+	 * Returns an entity that writes the current contents of the buffer. The
+	 * encoder mustn't be modified until the entity has been sent.
+	 */
+	AbstractHttpEntity toEntity() {
+		return entity(buffer, size);
+	}
+
+	/**
+	 * Returns an entity that writes the current contents of the buffer,
+	 * gzipped. The encoder mustn't be modified until the entity has been sent.
+	 */
+	AbstractHttpEntity toGzipEntity() {
+		if (compressed == null) {
+			compressed = new CompressedBuffer();
+		}
+		compressed.reset();
+		try {
+			final GZIPOutputStream gzip = new GZIPOutputStream(compressed);
+			gzip.write(buffer, 0, size);
+			// This also frees the Deflater's native memory:
+			gzip.close();
+		} catch (IOException e) {
+			// It's only writing to memory.
+			assert false;
+		}
+		final AbstractHttpEntity entity =
+			entity(compressed.array(), compressed.size());
+		entity.setContentEncoding("gzip");
+		return entity;
+	}
+
+	private static AbstractHttpEntity entity(
+		final byte[] content, final int length) {
+
+		final AbstractHttpEntity entity = new AbstractHttpEntity() {
+			@Override
+			public boolean isRepeatable() {
+				return true;
+			}
+
+			@Override
+			public long getContentLength() {
+				return length;
+			}
+
+			@Override
+			public InputStream getContent() {
+				return new ByteArrayInputStream(content, 0, length);
+			}
+
+			@Override
+			public void writeTo(OutputStream out) throws IOException {
+				out.write(content, 0, length);
+				out.flush();
+			}
+
+			@Override
+			public boolean isStreaming() {
+				return false;
+			}
+		};
+		entity.setContentType("application/x-www-form-urlencoded");
+		return entity;
+	}
+
+	@Override
+	public String toString() {
+		// The buffer only ever contains ASCII:
+		final char[] chars = new char[size];
+		for (int i = 0; i < size; ++i) {
+			chars[i] = (char) buffer[i];
+		}
+		return new String(chars);
+	}
+}
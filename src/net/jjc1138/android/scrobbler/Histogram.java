@@ -0,0 +1,65 @@
+package net.jjc1138.android.scrobbler;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import android.os.Bundle;
+
+/**
+ * A histogram with a fixed set of power-of-two buckets. Bucket 0 counts values
+ * below 1, and bucket i counts values in [2^(i-1), 2^i), with the last bucket
+ * also counting everything bigger. Recording a value doesn't allocate or take
+ * a lock, so it can be done from any thread on the hot path.
+ */
+final class Histogram {
+	static final int BUCKETS = 32;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong(Long.MIN_VALUE);
+
+	static int bucketFor(long value) {
+		if (value < 1) {
+			return 0;
+		}
+		return Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(value));
+	}
+
+	void record(long value) {
+		buckets.incrementAndGet(bucketFor(value));
+		count.incrementAndGet();
+		sum.addAndGet(value);
+		long m;
+		while ((m = max.get()) < value) {
+			if (max.compareAndSet(m, value)) {
+				break;
+			}
+		}
+	}
+
+	long getCount() {
+		return count.get();
+	}
+
+	/**
+	 * Returns a copy of the histogram, with the bucket counts in "buckets"
+	 * and the totals in "count", "sum" and "max" (which is only present if
+	 * something has been recorded).
+	 */
+	Bundle toBundle() {
+		final Bundle b = new Bundle();
+		final long[] counts = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; ++i) {
+			counts[i] = buckets.get(i);
+		}
+		b.putLongArray("buckets", counts);
+		b.putLong("count", count.get());
+		b.putLong("sum", sum.get());
+		final long m = max.get();
+		if (m != Long.MIN_VALUE) {
+			b.putLong("max", m);
+		}
+		return b;
+	}
+}
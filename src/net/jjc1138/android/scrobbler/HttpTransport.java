@@ -0,0 +1,120 @@
+package net.jjc1138.android.scrobbler;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.HttpConnection;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+import org.apache.http.protocol.ExecutionContext;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * The HTTP client used for all of our requests. There is one of these for the
+ * lifetime of the service, so connections (and the DNS lookups and TCP
+ * handshakes that go with them) are kept alive and reused from one scrobble
+ * to the next.
+ *
+ * Every request has a connect and a socket timeout, so a stalled network
+ * can't keep the service (and the WakeLock) alive indefinitely.
+ */
+final class HttpTransport {
+	static final int DEFAULT_CONNECT_TIMEOUT = 30 * 1000;
+	static final int DEFAULT_SOCKET_TIMEOUT = 60 * 1000;
+	// This is how long a request will wait for a pooled connection to become
+	// free.
+	private static final long POOL_TIMEOUT = 10 * 1000;
+	private static final int MAX_CONNECTIONS = 4;
+	private static final int MAX_CONNECTIONS_PER_ROUTE = 2;
+
+	private final DefaultHttpClient client;
+	private final ThreadSafeClientConnManager connections;
+
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong reusedConnections = new AtomicLong();
+
+	HttpTransport() {
+		this(DEFAULT_CONNECT_TIMEOUT, DEFAULT_SOCKET_TIMEOUT);
+	}
+
+	HttpTransport(int connectTimeout, int socketTimeout) {
+		HttpParams p = new BasicHttpParams();
+		HttpProtocolParams.setVersion(p, HttpVersion.HTTP_1_1);
+		HttpConnectionParams.setConnectionTimeout(p, connectTimeout);
+		HttpConnectionParams.setSoTimeout(p, socketTimeout);
+		HttpConnectionParams.setStaleCheckingEnabled(p, true);
+		ConnManagerParams.setTimeout(p, POOL_TIMEOUT);
+		ConnManagerParams.setMaxTotalConnections(p, MAX_CONNECTIONS);
+		ConnManagerParams.setMaxConnectionsPerRoute(p,
+			new ConnPerRouteBean(MAX_CONNECTIONS_PER_ROUTE));
+
+		SchemeRegistry schemes = new SchemeRegistry();
+		schemes.register(new Scheme(
+			"http", PlainSocketFactory.getSocketFactory(), 80));
+		schemes.register(new Scheme(
+			"https", SSLSocketFactory.getSocketFactory(), 443));
+
+		connections = new ThreadSafeClientConnManager(p, schemes);
+		client = new DefaultHttpClient(connections, p);
+		client.addRequestInterceptor(new HttpRequestInterceptor() {
+			@Override
+			public void process(HttpRequest request, HttpContext context)
+				throws HttpException, IOException {
+
+				requests.incrementAndGet();
+				HttpConnection c = (HttpConnection)
+					context.getAttribute(ExecutionContext.HTTP_CONNECTION);
+				// This runs before the request is sent, so any earlier
+				// requests on the connection mean that it has been reused:
+				if (c != null && c.getMetrics().getRequestCount() > 0) {
+					reusedConnections.incrementAndGet();
+				}
+			}
+		});
+	}
+
+	/**
+	 * The response's entity must be consumed (or its content closed) so that
+	 * the connection goes back into the pool.
+	 */
+	HttpResponse execute(HttpUriRequest request) throws IOException {
+		return client.execute(request);
+	}
+
+	long getRequests() {
+		return requests.get();
+	}
+
+	long getReusedConnections() {
+		return reusedConnections.get();
+	}
+
+	/**
+	 * Returns the fraction of requests that were sent on a connection that
+	 * had already been used, or zero if no requests have been made.
+	 */
+	float getReuseRate() {
+		final long n = requests.get();
+		return n == 0 ? 0 : (float) reusedConnections.get() / n;
+	}
+
+	void shutdown() {
+		connections.shutdown();
+	}
+}
@@ -0,0 +1,484 @@
+package net.jjc1138.android.scrobbler;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import android.util.Log;
+
+/**
+ * A QueueStore that keeps the queue in a journal made up of numbered segment
+ * files. Enqueuing a track appends one record to the newest segment, and
+ * acknowledging a batch appends one small commit record that says that
+ * everything up to a given sequence number has been submitted to a target,
+ * and everything up to the commit record's own sequence number has been
+ * submitted to every target. Segments that only contain entries that every
+ * target has acknowledged are deleted by compact().
+ *
+ * Each record looks like this:
+ *  int    length of the rest of the record, excluding the CRC
+ *  byte   type (ENTRY or COMMIT)
+ *  long   sequence number
+ *  byte[] payload
+ *  int    CRC32 of the type, sequence number and payload
+ *
+ * The payload of an ENTRY record is the encoded entry. The payload of a
+ * COMMIT record is either empty, or the target's sequence number (a long)
+ * followed by the target's name in UTF-8. Older versions ignored the payload
+ * of COMMIT records, and only had one target.
+ *
+ * If the device is switched off in the middle of a write then the last record
+ * will be incomplete or will fail its CRC check. Loading stops at the first
+ * bad record in a segment and the newest segment is truncated there so that
+ * appending can continue. If a segment can't be read, or the newest one can't
+ * be truncated, then we carry on with what we could read, and append to a new
+ * segment.
+ */
+class JournalQueueStore implements QueueStore {
+	private static final byte ENTRY = 'E';
+	private static final byte COMMIT = 'C';
+	private static final int HEADER_SIZE = 4;
+	// Type and sequence number:
+	private static final int MIN_RECORD_LENGTH = 1 + 8;
+	private static final int MAX_RECORD_LENGTH = 1024 * 1024;
+	private static final int CRC_SIZE = 4;
+	// This is the size at which we start a new segment. It's small enough
+	// that a segment full of acknowledged entries is cheap to leave lying
+	// around until the next compaction.
+	static final int SEGMENT_SIZE = 64 * 1024;
+
+	private final File dir;
+	private final String[] targets;
+
+	// Sequence numbers start at 1, so that zero can mean "not stored".
+	private long nextSequence = 1;
+	// Every target has acknowledged everything up to this:
+	private long committedSequence = 0;
+	// This is what each target has acknowledged up to:
+	private final HashMap<String, Long> targetSequences =
+		new HashMap<String, Long>();
+
+	// Segment numbers, oldest first, and the highest entry sequence number
+	// that each one contains (or zero if it has none):
+	private final ArrayList<Long> segments = new ArrayList<Long>();
+	private final ArrayList<Long> segmentMaxSequences = new ArrayList<Long>();
+
+	private FileOutputStream active = null;
+	private long activeSize = 0;
+	// This is set if a write to the active segment failed and we couldn't cut
+	// off what it did write, so the next write has to start a new segment.
+	private boolean torn = false;
+
+	private final CRC32 crc = new CRC32();
+
+	/**
+	 * targets are the names of every target that entries must be
+	 * acknowledged by before they can be forgotten.
+	 */
+	JournalQueueStore(File dir, String[] targets) {
+		this.dir = dir;
+		this.targets = targets;
+	}
+
+	private File segmentFile(long segment) {
+		return new File(dir, Long.toString(segment));
+	}
+
+	private static class Record {
+		Record(byte type, long sequence, byte[] payload) {
+			this.type = type;
+			this.sequence = sequence;
+			this.payload = payload;
+		}
+
+		final byte type;
+		final long sequence;
+		final byte[] payload;
+	}
+
+	private int checksum(byte type, long sequence, byte[] payload) {
+		crc.reset();
+		crc.update(type);
+		for (int shift = 56; shift >= 0; shift -= 8) {
+			crc.update((int) (sequence >>> shift));
+		}
+		crc.update(payload);
+		return (int) crc.getValue();
+	}
+
+	// Returns null at the end of the segment, or if the rest of the segment is
+	// unreadable.
+	private Record readRecord(DataInputStream in) throws IOException {
+		final int length;
+		try {
+			length = in.readInt();
+		} catch (EOFException e) {
+			return null;
+		}
+		if (length < MIN_RECORD_LENGTH || length > MAX_RECORD_LENGTH) {
+			return null;
+		}
+		try {
+			final byte type = in.readByte();
+			final long sequence = in.readLong();
+			final byte[] payload = new byte[length - MIN_RECORD_LENGTH];
+			in.readFully(payload);
+			final int storedChecksum = in.readInt();
+			if (storedChecksum != checksum(type, sequence, payload) ||
+				(type != ENTRY && type != COMMIT)) {
+
+				return null;
+			}
+			return new Record(type, sequence, payload);
+		} catch (EOFException e) {
+			return null;
+		}
+	}
+
+	private byte[] encodeRecord(byte type, long sequence, byte[] payload) {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream(
+			HEADER_SIZE + MIN_RECORD_LENGTH + payload.length + CRC_SIZE);
+		DataOutputStream out = new DataOutputStream(bos);
+		try {
+			out.writeInt(MIN_RECORD_LENGTH + payload.length);
+			out.writeByte(type);
+			out.writeLong(sequence);
+			out.write(payload);
+			out.writeInt(checksum(type, sequence, payload));
+			out.close();
+		} catch (IOException e) {
+			assert false;
+		}
+		return bos.toByteArray();
+	}
+
+	private long[] listSegments() {
+		String[] names = dir.list();
+		if (names == null) {
+			names = new String[] {};
+		}
+		long[] found = new long[names.length];
+		int n = 0;
+		for (String name : names) {
+			try {
+				found[n] = Long.parseLong(name);
+				++n;
+			} catch (NumberFormatException e) {
+				// Not ours.
+			}
+		}
+		long[] result = new long[n];
+		System.arraycopy(found, 0, result, 0, n);
+		Arrays.sort(result);
+		return result;
+	}
+
+	@Override
+	public synchronized List<QueueEntry> load() throws IOException {
+		final ArrayList<QueueEntry> entries = new ArrayList<QueueEntry>();
+		final long[] found = listSegments();
+		// This is set if we mustn't append to the newest segment, because we
+		// couldn't read all of it, or couldn't cut off a torn write at its
+		// end.
+		boolean appendable = true;
+		for (int i = 0; i < found.length; ++i) {
+			final long segment = found[i];
+			final boolean newest = i == found.length - 1;
+			long maxSequence = 0;
+			long goodSize = 0;
+			try {
+				DataInputStream in = new DataInputStream(
+					new BufferedInputStream(
+						new FileInputStream(segmentFile(segment))));
+				try {
+					Record r;
+					while ((r = readRecord(in)) != null) {
+						goodSize += HEADER_SIZE + MIN_RECORD_LENGTH +
+							r.payload.length + CRC_SIZE;
+						if (r.type == COMMIT) {
+							committedSequence =
+								Math.max(committedSequence, r.sequence);
+							readTargetCommit(r.payload);
+							continue;
+						}
+						maxSequence = Math.max(maxSequence, r.sequence);
+						try {
+							// The Track isn't decoded until it's about to be
+							// submitted, which keeps loading a large queue
+							// quick.
+							QueueEntry e =
+								TrackCodec.decodeEntryLazily(r.payload);
+							e.setSequence(r.sequence);
+							entries.add(e);
+						} catch (IOException e) {
+							// The record was written intact, so we couldn't
+							// read this entry last time either. Drop it.
+							Log.w(ScrobblerService.LOG_TAG,
+								"Dropping undecodable journal entry.");
+						}
+					}
+				} finally {
+					in.close();
+				}
+				if (newest && goodSize < segmentFile(segment).length()) {
+					Log.w(ScrobblerService.LOG_TAG,
+						"Truncating torn write in journal segment " + segment);
+					RandomAccessFile raf =
+						new RandomAccessFile(segmentFile(segment), "rw");
+					try {
+						raf.setLength(goodSize);
+						raf.getFD().sync();
+					} finally {
+						raf.close();
+					}
+				}
+			} catch (IOException e) {
+				// We keep what we read before the error, and the rest of the
+				// segment is left alone for next time. The later segments
+				// are still read, so that we know every sequence number that
+				// has been used.
+				Log.w(ScrobblerService.LOG_TAG,
+					"Couldn't read all of journal segment " + segment);
+				if (newest) {
+					appendable = false;
+				}
+			}
+			nextSequence = Math.max(nextSequence, maxSequence + 1);
+			segments.add(segment);
+			segmentMaxSequences.add(maxSequence);
+		}
+		// Targets that aren't mentioned are new, and they only get the
+		// entries that haven't already been acknowledged by everyone. Targets
+		// that are mentioned but that we don't have any more are forgotten.
+		final HashMap<String, Long> sequences = new HashMap<String, Long>();
+		for (String target : targets) {
+			final Long s = targetSequences.get(target);
+			sequences.put(target, s == null ?
+				committedSequence : Math.max(s, committedSequence));
+		}
+		targetSequences.clear();
+		targetSequences.putAll(sequences);
+		committedSequence = minTargetSequence();
+		nextSequence = Math.max(nextSequence, committedSequence + 1);
+		for (long s : targetSequences.values()) {
+			nextSequence = Math.max(nextSequence, s + 1);
+		}
+
+		final ArrayList<QueueEntry> pending = new ArrayList<QueueEntry>();
+		for (QueueEntry e : entries) {
+			if (e.getSequence() > committedSequence) {
+				pending.add(e);
+			}
+		}
+
+		try {
+			if (segments.isEmpty()) {
+				startSegment(0);
+			} else if (appendable) {
+				final int last = segments.size() - 1;
+				final File f = segmentFile(segments.get(last));
+				active = new FileOutputStream(f, true);
+				activeSize = f.length();
+			} else {
+				startSegment(segments.get(segments.size() - 1) + 1);
+			}
+		} catch (IOException e) {
+			// write() will try again when there's something to write.
+			Log.w(ScrobblerService.LOG_TAG,
+				"Couldn't open the journal for appending.");
+		}
+		return pending;
+	}
+
+	private void readTargetCommit(byte[] payload) throws IOException {
+		if (payload.length < 8) {
+			return;
+		}
+		final DataInputStream in =
+			new DataInputStream(new ByteArrayInputStream(payload));
+		final long sequence = in.readLong();
+		final byte[] name = new byte[payload.length - 8];
+		in.readFully(name);
+		final String target = new String(name, "UTF-8");
+		final Long s = targetSequences.get(target);
+		if (s == null || s < sequence) {
+			targetSequences.put(target, sequence);
+		}
+	}
+
+	private static byte[] targetCommit(String target, long sequence) {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bos);
+		try {
+			out.writeLong(sequence);
+			out.write(target.getBytes("UTF-8"));
+			out.close();
+		} catch (IOException e) {
+			assert false;
+		}
+		return bos.toByteArray();
+	}
+
+	private long minTargetSequence() {
+		long min = Long.MAX_VALUE;
+		for (long s : targetSequences.values()) {
+			min = Math.min(min, s);
+		}
+		return min == Long.MAX_VALUE ? committedSequence : min;
+	}
+
+	// Every segment starts with commit records, so that the committed
+	// sequence numbers survive even after the segment containing the
+	// previous commit records has been deleted.
+	private void startSegment(long segment) throws IOException {
+		if (active != null) {
+			final FileOutputStream old = active;
+			active = null;
+			old.close();
+		}
+		active = new FileOutputStream(segmentFile(segment));
+		activeSize = 0;
+		torn = false;
+		segments.add(segment);
+		segmentMaxSequences.add(0L);
+		final ByteArrayOutputStream records = new ByteArrayOutputStream();
+		records.write(encodeRecord(COMMIT, committedSequence, new byte[] {}));
+		for (String target : targetSequences.keySet()) {
+			records.write(encodeRecord(COMMIT, committedSequence,
+				targetCommit(target, targetSequences.get(target))));
+		}
+		try {
+			write(records.toByteArray());
+		} catch (IOException e) {
+			// A segment mustn't start without them, so the next write will
+			// start another one.
+			torn = true;
+			throw e;
+		}
+	}
+
+	// If a write fails part way through (because the disk is full, say) then
+	// we cut the segment back to where it was. Otherwise the records that we
+	// wrote after the torn one would be appended after it, and load() would
+	// stop at the torn one and throw them away.
+	private void write(byte[] record) throws IOException {
+		if (torn || active == null) {
+			startSegment(segments.isEmpty() ? 0 :
+				segments.get(segments.size() - 1) + 1);
+		}
+		try {
+			active.write(record);
+			active.getFD().sync();
+		} catch (IOException e) {
+			try {
+				active.getChannel().truncate(activeSize);
+			} catch (IOException e1) {
+				Log.w(ScrobblerService.LOG_TAG,
+					"Couldn't cut off a torn journal record.");
+				torn = true;
+			}
+			throw e;
+		}
+		activeSize += record.length;
+	}
+
+	@Override
+	public synchronized void append(QueueEntry entry) throws IOException {
+		final byte[] payload = TrackCodec.encodeEntry(entry);
+		if (activeSize >= SEGMENT_SIZE) {
+			startSegment(segments.get(segments.size() - 1) + 1);
+		}
+		final long sequence = nextSequence++;
+		write(encodeRecord(ENTRY, sequence, payload));
+		segmentMaxSequences.set(segmentMaxSequences.size() - 1, sequence);
+		entry.setSequence(sequence);
+	}
+
+	@Override
+	public synchronized long getAcknowledged(String target) {
+		final Long s = targetSequences.get(target);
+		return s == null ? committedSequence : s;
+	}
+
+	@Override
+	public synchronized void acknowledge(String target,
+		List<QueueEntry> batch) throws IOException {
+
+		long highest = 0;
+		for (QueueEntry e : batch) {
+			highest = Math.max(highest, e.getSequence());
+		}
+		if (highest <= getAcknowledged(target)) {
+			// Nothing in the batch was stored.
+			return;
+		}
+		final Long previous = targetSequences.put(target, highest);
+		final long committed = minTargetSequence();
+		// One record says both what this target has acknowledged, and what
+		// everyone has:
+		try {
+			write(encodeRecord(COMMIT, committed,
+				targetCommit(target, highest)));
+		} catch (IOException e) {
+			// It wasn't recorded, so it hasn't happened.
+			if (previous == null) {
+				targetSequences.remove(target);
+			} else {
+				targetSequences.put(target, previous);
+			}
+			throw e;
+		}
+		committedSequence = committed;
+	}
+
+	@Override
+	public synchronized void compact() {
+		try {
+			final int last = segments.size() - 1;
+			if (last >= 0 && committedSequence == nextSequence - 1 &&
+				activeSize >= SEGMENT_SIZE / 2) {
+
+				// Everything has been acknowledged, so start afresh rather
+				// than keep appending to a mostly dead segment:
+				startSegment(segments.get(last) + 1);
+			}
+		} catch (IOException e) {
+			Log.w(ScrobblerService.LOG_TAG, "Couldn't roll journal segment.");
+		}
+
+		// The newest segment is never deleted because we're appending to it.
+		while (segments.size() > 1 &&
+			segmentMaxSequences.get(0) <= committedSequence) {
+
+			final long segment = segments.remove(0);
+			segmentMaxSequences.remove(0);
+			if (!segmentFile(segment).delete()) {
+				Log.w(ScrobblerService.LOG_TAG,
+					"Couldn't delete journal segment " + segment);
+			}
+		}
+	}
+
+	@Override
+	public synchronized void close() {
+		if (active != null) {
+			try {
+				active.close();
+			} catch (IOException e) {}
+			active = null;
+		}
+	}
+}
@@ -0,0 +1,176 @@
+package net.jjc1138.android.scrobbler;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.provider.MediaStore;
+
+/**
+ * A small LRU cache of the MediaStore metadata that Track needs, keyed by
+ * audio ID. Music players tell us about the same track over and over again
+ * (and we poll them too), so without this we would query the MediaStore many
+ * times a minute for the same row. The whole cache is thrown away whenever
+ * the MediaStore tells us that anything in it has changed.
+ */
+final class MediaStoreCache {
+	static final int DEFAULT_CAPACITY = 64;
+
+	static final class Metadata {
+		Metadata(String artist, String title, long duration, String album,
+			int track) {
+
+			this.artist = artist;
+			this.title = title;
+			this.duration = duration;
+			this.album = album;
+			this.track = track;
+		}
+
+		final String artist;
+		final String title;
+		final long duration;
+		final String album;
+		final int track;
+	}
+
+	private static final String[] COLUMNS = new String[] {
+		MediaStore.Audio.AudioColumns.ARTIST,
+		MediaStore.Audio.AudioColumns.TITLE,
+		MediaStore.Audio.AudioColumns.DURATION,
+		MediaStore.Audio.AudioColumns.ALBUM,
+		MediaStore.Audio.AudioColumns.TRACK,
+	};
+	private static final int ARTIST = 0;
+	private static final int TITLE = 1;
+	private static final int DURATION = 2;
+	private static final int ALBUM = 3;
+	private static final int TRACK = 4;
+
+	// This is cached for IDs that aren't in the MediaStore:
+	private static final Metadata MISSING =
+		new Metadata(null, null, 0, null, 0);
+
+	private final ContentResolver resolver;
+	private final Histogram lookupTime;
+	private final LinkedHashMap<Long, Metadata> cache;
+	private final ContentObserver observer;
+	// The cursor's column indices for each of COLUMNS. These are looked up
+	// from the first cursor that we get, and again after the MediaStore has
+	// changed.
+	private int[] columnIndices = null;
+
+	private long hits = 0;
+	private long misses = 0;
+	private long invalidations = 0;
+
+	MediaStoreCache(ContentResolver resolver, Handler handler,
+		final int capacity, Histogram lookupTime) {
+
+		this.resolver = resolver;
+		this.lookupTime = lookupTime;
+		cache = new LinkedHashMap<Long, Metadata>(capacity, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(
+				Map.Entry<Long, Metadata> eldest) {
+
+				return size() > capacity;
+			}
+		};
+		observer = new ContentObserver(handler) {
+			@Override
+			public void onChange(boolean selfChange) {
+				invalidate();
+			}
+		};
+	}
+
+	void start() {
+		resolver.registerContentObserver(
+			MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, true, observer);
+	}
+
+	void stop() {
+		resolver.unregisterContentObserver(observer);
+		invalidate();
+	}
+
+	synchronized void invalidate() {
+		if (!cache.isEmpty()) {
+			++invalidations;
+		}
+		cache.clear();
+		columnIndices = null;
+	}
+
+	/**
+	 * Returns the metadata for the track with the given ID in the external
+	 * MediaStore, or null if there is no such track. Throws
+	 * NoSuchElementException if the MediaStore can't be queried at all.
+	 */
+	synchronized Metadata get(long id) {
+		final Long key = id;
+		Metadata m = cache.get(key);
+		if (m != null) {
+			++hits;
+			return m == MISSING ? null : m;
+		}
+		++misses;
+
+		final long start = SystemClock.uptimeMillis();
+		Cursor cur = resolver.query(
+			ContentUris.withAppendedId(
+				MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, id),
+			COLUMNS, null, null, null);
+		if (cur == null) {
+			// Don't cache this, because the MediaStore might just not be
+			// available at the moment (e.g. the memory card is mounted on a
+			// computer).
+			throw new NoSuchElementException();
+		}
+		try {
+			if (!cur.moveToFirst()) {
+				m = MISSING;
+			} else {
+				if (columnIndices == null) {
+					columnIndices = new int[COLUMNS.length];
+					for (int i = 0; i < COLUMNS.length; ++i) {
+						columnIndices[i] = cur.getColumnIndex(COLUMNS[i]);
+					}
+				}
+				final int[] c = columnIndices;
+				m = new Metadata(
+					cur.getString(c[ARTIST]),
+					cur.getString(c[TITLE]),
+					cur.getLong(c[DURATION]),
+					cur.getString(c[ALBUM]),
+					cur.getInt(c[TRACK]));
+			}
+		} finally {
+			cur.close();
+			lookupTime.record(SystemClock.uptimeMillis() - start);
+		}
+		cache.put(key, m);
+		return m == MISSING ? null : m;
+	}
+
+	synchronized long getHits() {
+		return hits;
+	}
+
+	synchronized long getMisses() {
+		return misses;
+	}
+
+	synchronized long getInvalidations() {
+		return invalidations;
+	}
+}
@@ -1,15 +1,25 @@
 package net.jjc1138.android.scrobbler;
 
+import java.util.concurrent.atomic.AtomicLong;
+
 import android.app.Service;
 import android.content.ComponentName;
 import android.content.Intent;
 import android.content.ServiceConnection;
+import android.os.Handler;
 import android.os.IBinder;
 import android.os.RemoteException;
+import android.os.SystemClock;
 
 /**
  * This service connects to the Music application, gets its status, and then
  * broadcasts that in our format (to be received by StatusBroadcastReceiver).
+ *
+ * We're asked for the status on every broadcast from the player, and every
+ * minute while it's playing, so we stay bound to each player while it's
+ * playing rather than binding for every query. Queries that are made while
+ * one is already waiting are coalesced into it. We unbind when the player
+ * says it has stopped, or when we haven't been asked about it for a while.
  */
 public class MusicStatusFetcher extends Service {
 	static final String FROM_MUSIC_STATUS_FETCHER =
@@ -17,85 +27,239 @@ public class MusicStatusFetcher extends Service {
 	static final String BROADCAST_ACTION =
 		"net.jjc1138.android.scrobbler.broadcast_action";
 
-	private int starts = 0;
+	// If we're not asked about a player for this long then we let go of it,
+	// so that we don't keep it alive:
+	private static final long IDLE_TIMEOUT = 5 * 60 * 1000;
 
-	@Override
-	public void onStart(Intent intent, int startId) {
-		super.onStart(intent, startId);
-		
-		++starts;
-		
-		final String broadcastAction = intent.getStringExtra(BROADCAST_ACTION);
-		final boolean htc;
-		final String vendor;
-		if (broadcastAction.startsWith("com.htc.")) {
-			vendor = "htc";
-			htc = true;
-		} else {
-			vendor = "android";
-			htc = false;
+	// These are for the whole process, so that ScrobblerService can report
+	// them. The times are from being asked for a status to broadcasting it.
+	static final Histogram queryLatency = new Histogram();
+	private static final AtomicLong binds = new AtomicLong();
+	private static final AtomicLong reconnects = new AtomicLong();
+	private static final AtomicLong queries = new AtomicLong();
+	private static final AtomicLong coalesced = new AtomicLong();
+
+	static long getBinds() {
+		return binds.get();
+	}
+
+	static long getReconnects() {
+		return reconnects.get();
+	}
+
+	static long getQueries() {
+		return queries.get();
+	}
+
+	static long getCoalesced() {
+		return coalesced.get();
+	}
+
+	/**
+	 * A binding to one vendor's player. Everything here happens on the main
+	 * thread.
+	 */
+	private abstract class Player implements ServiceConnection {
+		private final String vendor;
+		private boolean bound = false;
+		private boolean connected = false;
+		private boolean everConnected = false;
+		// This is the uptime when the waiting query was asked for, or -1 if
+		// there isn't one.
+		private long requested = -1;
+		// The player broadcast that the waiting query was asked for by:
+		private String broadcastAction;
+
+		Player(String vendor) {
+			this.vendor = vendor;
 		}
-		bindService(new Intent().setClassName(
-			"com." + vendor + ".music",
-			"com." + vendor + ".music.MediaPlaybackService"),
-			new ServiceConnection() {
-
-			private void getDetails(
-				final Intent out, final IBinder binder) {
-				
-				com.android.music.IMediaPlaybackService s =
-					com.android.music.IMediaPlaybackService.Stub.asInterface(
-						binder);
-				try {
-					out.putExtra("playing", s.isPlaying());
-					out.putExtra("id", s.getAudioId());
-				} catch (RemoteException e) {
-					out.putExtra("playing", false);
-				}
-			}
 
-			private void getHTCDetails(
-				final Intent out, final IBinder binder) {
-				
-				com.htc.music.IMediaPlaybackService s =
-					com.htc.music.IMediaPlaybackService.Stub.asInterface(
-						binder);
-				try {
-					out.putExtra("playing", s.isPlaying());
-					out.putExtra("id", s.getAudioId());
-				} catch (RemoteException e) {
-					out.putExtra("playing", false);
+		protected abstract void connected(IBinder binder);
+
+		protected abstract void disconnected();
+
+		// I tried doing this with reflection, but it required a whole bunch
+		// of ugly calls:
+		protected abstract void getDetails(Intent out) throws RemoteException;
+
+		boolean isBound() {
+			return bound;
+		}
+
+		void request(String broadcastAction) {
+			handler.removeCallbacks(idle);
+			handler.postDelayed(idle, IDLE_TIMEOUT);
+			this.broadcastAction = broadcastAction;
+			if (requested != -1) {
+				coalesced.incrementAndGet();
+				return;
+			}
+			requested = SystemClock.uptimeMillis();
+			if (!bound) {
+				binds.incrementAndGet();
+				bound = bindService(new Intent().setClassName(
+					"com." + vendor + ".music",
+					"com." + vendor + ".music.MediaPlaybackService"), this, 0);
+				if (!bound) {
+					// The player isn't installed.
+					requested = -1;
+					stopIfIdle();
 				}
+				// Otherwise we'll query when we're connected.
+			} else if (connected) {
+				// Posted, so that the other requests from a burst of
+				// broadcasts are coalesced into this one:
+				handler.post(query);
 			}
+		}
 
+		private final Runnable query = new Runnable() {
 			@Override
-			public void onServiceConnected(ComponentName comp, IBinder binder) {
+			public void run() {
+				if (requested == -1 || !connected) {
+					return;
+				}
+				queries.incrementAndGet();
 				Intent i = new Intent(
 					StatusBroadcastReceiver.ACTION_MUSIC_STATUS);
-				// I tried doing this with reflection, but it required a whole
-				// bunch of ugly calls:
-				if (htc) {
-					getHTCDetails(i, binder);
-				} else {
-					getDetails(i, binder);
+				boolean playing;
+				try {
+					getDetails(i);
+					playing = i.getBooleanExtra("playing", false);
+				} catch (RemoteException e) {
+					// The player has probably died. We'll bind again next
+					// time.
+					i.putExtra("playing", false);
+					playing = false;
 				}
-				MusicStatusFetcher.this.unbindService(this);
 				i.putExtra(FROM_MUSIC_STATUS_FETCHER, true);
 				i.putExtra(BROADCAST_ACTION, broadcastAction);
 				sendBroadcast(i);
-				
-				--starts;
-				// If starts > 0 then this service was started more than once
-				// and this onServiceConnected() method will be called again in
-				// a moment.
-				if (starts == 0) {
-					MusicStatusFetcher.this.stopSelf();
+				queryLatency.record(SystemClock.uptimeMillis() - requested);
+				requested = -1;
+
+				if (!playing) {
+					release();
+					stopIfIdle();
 				}
 			}
+		};
 
+		// This also gives up on a query that was never answered, because
+		// the player wasn't running.
+		private final Runnable idle = new Runnable() {
 			@Override
-			public void onServiceDisconnected(ComponentName comp) {}
-		}, 0);
+			public void run() {
+				release();
+				stopIfIdle();
+			}
+		};
+
+		void release() {
+			handler.removeCallbacks(query);
+			handler.removeCallbacks(idle);
+			if (bound) {
+				unbindService(this);
+				bound = false;
+			}
+			connected = false;
+			everConnected = false;
+			requested = -1;
+			disconnected();
+		}
+
+		@Override
+		public void onServiceConnected(ComponentName comp, IBinder binder) {
+			connected(binder);
+			connected = true;
+			if (everConnected) {
+				reconnects.incrementAndGet();
+			}
+			everConnected = true;
+			query.run();
+		}
+
+		@Override
+		public void onServiceDisconnected(ComponentName comp) {
+			// The player has died. We stay bound, so we'll be connected again
+			// if it's restarted, and any query that is waiting will be
+			// answered then.
+			connected = false;
+			disconnected();
+		}
+	}
+
+	private final Player player = new Player("android") {
+		private com.android.music.IMediaPlaybackService s;
+
+		@Override
+		protected void connected(IBinder binder) {
+			s = com.android.music.IMediaPlaybackService.Stub.asInterface(binder);
+		}
+
+		@Override
+		protected void disconnected() {
+			s = null;
+		}
+
+		@Override
+		protected void getDetails(Intent out) throws RemoteException {
+			out.putExtra("playing", s.isPlaying());
+			out.putExtra("id", s.getAudioId());
+		}
+	};
+
+	private final Player htcPlayer = new Player("htc") {
+		private com.htc.music.IMediaPlaybackService s;
+
+		@Override
+		protected void connected(IBinder binder) {
+			s = com.htc.music.IMediaPlaybackService.Stub.asInterface(binder);
+		}
+
+		@Override
+		protected void disconnected() {
+			s = null;
+		}
+
+		@Override
+		protected void getDetails(Intent out) throws RemoteException {
+			out.putExtra("playing", s.isPlaying());
+			out.putExtra("id", s.getAudioId());
+		}
+	};
+
+	private Handler handler;
+
+	@Override
+	public void onCreate() {
+		super.onCreate();
+		handler = new Handler();
+	}
+
+	@Override
+	public void onStart(Intent intent, int startId) {
+		super.onStart(intent, startId);
+
+		final String broadcastAction = intent.getStringExtra(BROADCAST_ACTION);
+		if (broadcastAction.startsWith("com.htc.")) {
+			htcPlayer.request(broadcastAction);
+		} else {
+			player.request(broadcastAction);
+		}
+	}
+
+	private void stopIfIdle() {
+		if (!player.isBound() && !htcPlayer.isBound()) {
+			stopSelf();
+		}
+	}
+
+	@Override
+	public void onDestroy() {
+		super.onDestroy();
+		player.release();
+		htcPlayer.release();
 	}
 
 	@Override
@@ -0,0 +1,283 @@
+package net.jjc1138.android.scrobbler;
+
+/**
+ * Keeps track of what is playing, for how long, and decides when a track has
+ * been played enough to be enqueued for scrobbling. This has no dependencies
+ * on Android: the time comes from a Clock and delayed work goes to a
+ * Scheduler, so it can be driven by the service in real time or by anything
+ * else in virtual time.
+ *
+ * This isn't thread-safe. The service only uses it on its main thread.
+ */
+final class PlayTracker {
+	interface Clock {
+		long currentTimeMillis();
+	}
+
+	interface Scheduler {
+		void schedule(Runnable task, long delayMillis);
+	}
+
+	// These are the reasons that a track can be enqueued for:
+	// The track finished and then started again.
+	static final int REPEATED = 0;
+	// A different track started.
+	static final int CHANGED = 1;
+	// The track was paused/stopped after being played to the end.
+	static final int STOPPED = 2;
+	// The track was paused/stopped and then nothing happened for a while.
+	static final int IDLE = 3;
+
+	interface Listener {
+		void enqueued(QueueEntry entry, int reason);
+		// A new track, with good enough metadata to scrobble, started
+		// playing.
+		void started(QueueEntry entry);
+		void log(String message);
+	}
+
+	static final Clock SYSTEM_CLOCK = new Clock() {
+		@Override
+		public long currentTimeMillis() {
+			return System.currentTimeMillis();
+		}
+	};
+
+	private final Clock clock;
+	private final Scheduler scheduler;
+	private final Listener listener;
+
+	private QueueEntry lastPlaying = null;
+	private boolean lastPlayingWasPaused = true;
+	private long lastPlayingTimePlayed = 0;
+	private long lastResumedTime = -1;
+	// This is the time of the last "meaningful" event, i.e. a track that was
+	// playing being paused, or vice-versa, or a new track being played.
+	private long lastEventTime = -1;
+
+	PlayTracker(Clock clock, Scheduler scheduler, Listener listener) {
+		this.clock = clock;
+		this.scheduler = scheduler;
+		this.listener = listener;
+	}
+
+	/**
+	 * Sets the track that was paused/stopped when the service last shut down.
+	 */
+	void restore(QueueEntry lastPlaying, long timePlayed) {
+		this.lastPlaying = lastPlaying;
+		lastPlayingTimePlayed = timePlayed;
+	}
+
+	/**
+	 * Returns the track that is playing or was last paused/stopped, if it
+	 * hasn't been enqueued yet.
+	 */
+	QueueEntry getLastPlaying() {
+		return lastPlaying;
+	}
+
+	long getTimePlayed() {
+		return lastPlayingTimePlayed;
+	}
+
+	boolean isPlaying() {
+		return !lastPlayingWasPaused;
+	}
+
+	/**
+	 * This should be called if the clock has jumped, because lastEventTime is
+	 * used to determine when we should scrobble and it may be very wrong if
+	 * the time was wrong.
+	 */
+	void resetEventTime() {
+		lastEventTime = clock.currentTimeMillis();
+	}
+
+	private void enqueue(int reason) {
+		listener.enqueued(lastPlaying, reason);
+	}
+
+	private void newTrackStarted(Track t, long now) {
+		if (t != null) {
+			lastPlaying = new QueueEntry(t, now);
+			lastPlayingWasPaused = false;
+			lastResumedTime = now;
+			listener.log("New track started.");
+			listener.started(lastPlaying);
+		} else {
+			lastPlaying = null;
+			lastPlayingWasPaused = true;
+			listener.log("New track with inadequate metadata started.");
+		}
+		lastPlayingTimePlayed = 0;
+		lastEventTime = now;
+	}
+
+	private boolean playedWholeTrack() {
+		final Long length = lastPlaying.getTrack().getMillis();
+		if (length == null) {
+			// Radio streams and some MediaStore tracks have no length, so we
+			// can't tell whether they finished.
+			return false;
+		}
+		// Put some wiggle room in to compensate for the imprecision of our
+		// timekeeping.
+		long diff = length - lastPlayingTimePlayed;
+		if (diff < 30000) {
+			listener.log("Whole track timing error: " + diff);
+		}
+		return diff < 3000;
+	}
+
+	private boolean playTimeEnoughForScrobble() {
+		final long playTime = lastPlayingTimePlayed;
+		// For debugging:
+		//if (true) { return playTime >= 5000; }
+		if (playTime < 30000) {
+			return false;
+		}
+		if (playTime >= 240000) {
+			return true;
+		}
+		Long length = lastPlaying.getTrack().getMillis();
+		if (length == null) {
+			length = 1000L;
+		}
+		return playTime >= (length / 2);
+	}
+
+	/**
+	 * Returns true if being told that the last status happened again would
+	 * change nothing. There are two cases where it isn't a no-op:
+	 * 1) We didn't have enough metadata for the track, in which case it resets
+	 *    lastEventTime.
+	 * 2) The track had been paused right at its end and then resumed, in which
+	 *    case playing() will think that it has been repeated.
+	 */
+	boolean repeatIsNoop(boolean playing) {
+		if (!playing) {
+			return true;
+		}
+		if (lastPlaying == null || lastPlayingWasPaused) {
+			return false;
+		}
+		return !(playedWholeTrack() && playTimeEnoughForScrobble());
+	}
+
+	/**
+	 * t is the track that is now playing, or null if its metadata wasn't good
+	 * enough to scrobble it.
+	 */
+	void playing(Track t) {
+		final long now = clock.currentTimeMillis();
+
+		if (lastPlaying == null) {
+			newTrackStarted(t, now);
+		} else {
+			if (lastPlaying.getTrack().equals(t)) {
+				if (lastPlayingWasPaused) {
+					lastResumedTime = now;
+					lastEventTime = now;
+					lastPlayingWasPaused = false;
+					listener.log("Previously paused track resumed.");
+				} else {
+					if (playedWholeTrack() && playTimeEnoughForScrobble()) {
+						enqueue(REPEATED);
+						newTrackStarted(t, now);
+					} else {
+						// lastPlaying track is still playing, but hasn't
+						// gotten to the end yet (and so isn't repeating):
+						// NOOP.
+					}
+				}
+			} else {
+				if (!lastPlayingWasPaused) {
+					lastPlayingTimePlayed += now - lastResumedTime;
+				}
+				if (playTimeEnoughForScrobble()) {
+					enqueue(CHANGED);
+				} else {
+					listener.log("Previously " +
+						(lastPlayingWasPaused ? "paused" : "playing") +
+						" track wasn't playing long enough to scrobble.");
+				}
+				newTrackStarted(t, now);
+			}
+		}
+	}
+
+	void stopped() {
+		final long now = clock.currentTimeMillis();
+
+		if (lastPlaying == null || lastPlayingWasPaused) {
+			// We weren't playing before and we aren't playing now: NOOP.
+		} else {
+			// A track was playing.
+			lastPlayingTimePlayed += now - lastResumedTime;
+			lastPlayingWasPaused = true;
+			lastEventTime = now;
+			listener.log("Track paused/stopped. Total play time so far " +
+				"is " + lastPlayingTimePlayed + ".");
+			if (playedWholeTrack() && playTimeEnoughForScrobble()) {
+				enqueue(STOPPED);
+				lastPlaying = null;
+				lastPlayingTimePlayed = 0;
+			} else {
+				// If the whole track wasn't played then that's okay: the
+				// track will still be queued eventually by enqueueIfIdle() if
+				// it has played for long enough.
+				//
+				// We queue completed tracks now to make the UI more
+				// intuitive. If a playlist ends then the last track will be
+				// queued immediately.
+				//
+				// If we wanted to we could queue any track that has played
+				// for long enough at this point. The reason we don't do
+				// that is to avoid enqueuing duplicates when a track wasn't
+				// really repeated. If we did enqueue partially played
+				// tracks now then the following situation could occur:
+				// 1) A track plays for 55% of it's play time.
+				// 2) User pauses. The track gets enqueued and
+				//    lastPlayingTimePlayed is reset to zero.
+				// 3) User rewinds it back 10% so it is at 45%. We don't get
+				//    informed about this type of event.
+				// 4) User resumes.
+				// 5) Track plays until the end. 55% of it has played so we
+				//    assume that it was repeated. It gets enqueued again.
+				// In fact the user had only listened to 110% of the track
+				// so they probably don't want to scrobble it twice.
+				//
+				// Unfortunately the situation described above can still
+				// occur if the user has the immediate scrobbling mode
+				// switched on, but there doesn't seem to be an obvious way
+				// of avoiding it in that case.
+			}
+		}
+	}
+
+	/**
+	 * Returns true if less than waitingTimeMillis has passed since the last
+	 * event, in which case recheck is scheduled to run after that long,
+	 * because the user might start playing music again soon.
+	 */
+	boolean waitingForIdle(long waitingTimeMillis, Runnable recheck) {
+		if (clock.currentTimeMillis() - lastEventTime < waitingTimeMillis) {
+			scheduler.schedule(recheck, waitingTimeMillis);
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Enqueues the paused/stopped track if it played for long enough. This
+	 * should only be called when nothing is playing.
+	 */
+	void enqueueIfIdle() {
+		if (lastPlaying != null && playTimeEnoughForScrobble()) {
+			enqueue(IDLE);
+			lastPlaying = null;
+			lastPlayingTimePlayed = 0;
+		}
+	}
+}
@@ -0,0 +1,44 @@
+package net.jjc1138.android.scrobbler;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Durable storage for the scrobbling queue. Entries are stored in the order
+ * that they are appended and are acknowledged in that same order by each
+ * target once they have been submitted to it, so they must survive the device
+ * being switched off at any point in between. An entry is only forgotten once
+ * every target has acknowledged it.
+ */
+interface QueueStore {
+	/**
+	 * Returns every entry that has been appended but not yet acknowledged by
+	 * every target, oldest first. This must be called once before anything
+	 * else.
+	 */
+	List<QueueEntry> load() throws IOException;
+
+	/**
+	 * Returns the sequence number of the last entry that the target has
+	 * acknowledged. Loaded entries up to that one should be skipped for that
+	 * target.
+	 */
+	long getAcknowledged(String target);
+
+	void append(QueueEntry entry) throws IOException;
+
+	/**
+	 * Marks every entry in the batch, and everything that was appended before
+	 * them, as submitted to the target.
+	 */
+	void acknowledge(String target, List<QueueEntry> batch)
+		throws IOException;
+
+	/**
+	 * Reclaims the space used by acknowledged entries. This may be slow, so it
+	 * shouldn't be called from the main thread.
+	 */
+	void compact();
+
+	void close();
+}
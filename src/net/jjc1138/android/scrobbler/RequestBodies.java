@@ -0,0 +1,79 @@
+package net.jjc1138.android.scrobbler;
+
+/**
+ * Writes the bodies of Audioscrobbler submission and now playing requests
+ * into a FormEncoder. Optional fields that we don't have are still sent, but
+ * empty, as the protocol asks.
+ */
+final class RequestBodies {
+	private RequestBodies() {}
+
+	/**
+	 * Starts a submission body. Each track is then added with
+	 * appendSubmission().
+	 */
+	static void startSubmission(FormEncoder f, String sessionID) {
+		f.reset();
+		f.appendRaw("s=").appendRaw(sessionID);
+	}
+
+	/**
+	 * Appends the i'th track of a submission. The entry's Track must have
+	 * been loaded.
+	 */
+	static void appendSubmission(FormEncoder f, int i, QueueEntry e) {
+		final Track t = e.getTrack();
+		final Long secs = t.getSecs();
+		final String album = t.getAlbum();
+		final Integer tracknumber = t.getTracknumber();
+		final String mbtrackid = t.getMbtrackid();
+		f.appendField('a', i).appendEncoded(t.getArtist());
+		f.appendField('t', i).appendEncoded(t.getTrack());
+		f.appendField('i', i).appendNumber(e.getStartTime() / 1000);
+		f.appendField('o', i).appendEncoded(t.getSource());
+		f.appendField('r', i);
+		f.appendField('l', i);
+		if (secs != null) {
+			f.appendNumber(secs);
+		}
+		f.appendField('b', i);
+		if (album != null) {
+			f.appendEncoded(album);
+		}
+		f.appendField('n', i);
+		if (tracknumber != null) {
+			f.appendNumber(tracknumber);
+		}
+		f.appendField('m', i);
+		if (mbtrackid != null) {
+			f.appendEncoded(mbtrackid);
+		}
+	}
+
+	static void nowPlaying(FormEncoder f, String sessionID, Track t) {
+		final Long secs = t.getSecs();
+		final String album = t.getAlbum();
+		final Integer tracknumber = t.getTracknumber();
+		final String mbtrackid = t.getMbtrackid();
+		f.reset();
+		f.appendRaw("s=").appendRaw(sessionID);
+		f.appendField('a').appendEncoded(t.getArtist());
+		f.appendField('t').appendEncoded(t.getTrack());
+		f.appendField('b');
+		if (album != null) {
+			f.appendEncoded(album);
+		}
+		f.appendField('l');
+		if (secs != null) {
+			f.appendNumber(secs);
+		}
+		f.appendField('n');
+		if (tracknumber != null) {
+			f.appendNumber(tracknumber);
+		}
+		f.appendField('m');
+		if (mbtrackid != null) {
+			f.appendEncoded(mbtrackid);
+		}
+	}
+}
@@ -0,0 +1,49 @@
+package net.jjc1138.android.scrobbler;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.http.HttpEntity;
+
+/**
+ * Reads an Audioscrobbler response a line at a time, straight from the
+ * connection. The status is always on the first line, so a response can be
+ * decided on as soon as that has arrived, without reading the whole body into
+ * a String and splitting it up with a regular expression.
+ *
+ * The entity still has to be consumed afterwards, so that the connection can
+ * be reused.
+ */
+final class ResponseLines {
+	// No line of a response that we understand is anywhere near this long:
+	static final int MAX_LINE_LENGTH = 1024;
+
+	private final InputStream in;
+	private final char[] line = new char[MAX_LINE_LENGTH];
+
+	ResponseLines(HttpEntity e) throws IOException {
+		in = e.getContent();
+	}
+
+	/**
+	 * Returns the next line, without its line ending, or null if there are
+	 * no more lines. The responses are all US-ASCII.
+	 */
+	String next() throws IOException {
+		int length = 0;
+		int b;
+		while ((b = in.read()) != -1 && b != '\n') {
+			if (b == '\r') {
+				continue;
+			}
+			if (length == line.length) {
+				throw new IOException("Response line too long");
+			}
+			line[length++] = (char) b;
+		}
+		if (b == -1 && length == 0) {
+			return null;
+		}
+		return new String(line, 0, length);
+	}
+}
@@ -0,0 +1,258 @@
+package net.jjc1138.android.scrobbler;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * The entries that are waiting to be scrobbled, shared by every target that
+ * we submit to. The entries form a linked list that is only appended to, and
+ * each target has a Cursor that points at the last entry that it has had
+ * acknowledged. An entry is reclaimed once every cursor has passed it, at
+ * which point nothing refers to it any more.
+ *
+ * A target's scrobble task batches up the entries after its cursor in Claims.
+ * If the scrobbling fails then the next scrobble starts again from the
+ * cursor, so it goes through the same entries in the same order, although
+ * the batches might be smaller.
+ *
+ * Nothing here takes a lock:
+ *  - Any thread can add() entries. Each entry is linked after the tail with a
+ *    compare-and-set.
+ *  - Nodes and claims are immutable once they have been published, apart
+ *    from a node's link to the next one, which is only set once.
+ *  - Each cursor is only moved by its own target's scrobble task, and the
+ *    reclaimed node is only moved forward with a compare-and-set, so targets
+ *    acknowledging on different threads can't move it backwards.
+ *  - Counts are the differences between the positions of nodes, so they can
+ *    be read cheaply from any thread.
+ */
+final class ScrobbleQueue {
+	// This isn't private, because AtomicReferenceFieldUpdater can't reach the
+	// fields of a private class.
+	static final class Node {
+		Node(QueueEntry entry, long position) {
+			this.entry = entry;
+			this.position = position;
+		}
+
+		final QueueEntry entry;
+		// The number of entries that have been added up to and including
+		// this one:
+		final long position;
+		volatile Node next = null;
+	}
+
+	private static final AtomicReferenceFieldUpdater<Node, Node> NEXT =
+		AtomicReferenceFieldUpdater.newUpdater(Node.class, Node.class, "next");
+
+	/**
+	 * One target's position in the queue.
+	 */
+	static final class Cursor {
+		private Cursor(Node acked) {
+			this.acked = acked;
+		}
+
+		// The last node that the target has acknowledged. It's only written
+		// by acknowledge(), skip() and trim().
+		private volatile Node acked;
+	}
+
+	static final class Claim {
+		private Claim(QueueEntry[] entries, Node after, Node last) {
+			this.entries = Collections.unmodifiableList(Arrays.asList(entries));
+			this.after = after;
+			this.last = last;
+		}
+
+		final List<QueueEntry> entries;
+		private final Node after;
+		private final Node last;
+	}
+
+	private final AtomicReference<Node> tail;
+	// Every cursor has acknowledged everything up to and including this node.
+	private final AtomicReference<Node> reclaimed;
+	private final CopyOnWriteArrayList<Cursor> cursors =
+		new CopyOnWriteArrayList<Cursor>();
+
+	ScrobbleQueue() {
+		final Node dummy = new Node(null, 0);
+		tail = new AtomicReference<Node>(dummy);
+		reclaimed = new AtomicReference<Node>(dummy);
+	}
+
+	/**
+	 * Adds a cursor for a target. It starts at the oldest entry that hasn't
+	 * been reclaimed. This should be done before the target starts
+	 * scrobbling.
+	 */
+	Cursor newCursor() {
+		final Cursor c = new Cursor(reclaimed.get());
+		cursors.add(c);
+		return c;
+	}
+
+	/**
+	 * Adds an entry to the end of the queue. This can be called from any
+	 * thread.
+	 */
+	void add(QueueEntry entry) {
+		while (true) {
+			final Node t = tail.get();
+			final Node next = t.next;
+			if (next != null) {
+				// Someone else has linked a node but not moved the tail yet.
+				tail.compareAndSet(t, next);
+				continue;
+			}
+			final Node n = new Node(entry, t.position + 1);
+			if (NEXT.compareAndSet(t, null, n)) {
+				tail.compareAndSet(t, n);
+				return;
+			}
+		}
+	}
+
+	void addAll(Collection<QueueEntry> entries) {
+		for (QueueEntry e : entries) {
+			add(e);
+		}
+	}
+
+	/**
+	 * Moves the cursor past the entries at its head that have been stored
+	 * with sequence numbers up to the given one, because the target
+	 * acknowledged them before we were last stopped.
+	 */
+	void skip(Cursor c, long sequence) {
+		Node n = c.acked;
+		while (n.next != null && n.next.entry.getSequence() != 0 &&
+			n.next.entry.getSequence() <= sequence) {
+
+			n = n.next;
+		}
+		c.acked = n;
+	}
+
+	/**
+	 * Returns up to max entries that follow after, or that follow the cursor
+	 * if after is null. Returns null if there are no more entries.
+	 */
+	Claim next(Cursor c, Claim after, int max) {
+		final Node start = after == null ? c.acked : after.last;
+		QueueEntry[] entries = new QueueEntry[max];
+		int n = 0;
+		Node last = start;
+		while (n < max && last.next != null) {
+			last = last.next;
+			entries[n++] = last.entry;
+		}
+		if (n == 0) {
+			return null;
+		}
+		if (n < max) {
+			final QueueEntry[] fewer = new QueueEntry[n];
+			System.arraycopy(entries, 0, fewer, 0, n);
+			entries = fewer;
+		}
+		return new Claim(entries, start, last);
+	}
+
+	/**
+	 * Moves the cursor past a claim that has been acknowledged. Each
+	 * cursor's claims must be acknowledged in order. Returns the entries that
+	 * have now been acknowledged by every cursor, oldest first.
+	 */
+	List<QueueEntry> acknowledge(Cursor c, Claim claim) {
+		assert c.acked == claim.after;
+		c.acked = claim.last;
+		return reclaim();
+	}
+
+	/**
+	 * Moves the cursor forward until its target has no more than max entries
+	 * pending, as though it had acknowledged the ones that it passes. This
+	 * must only be done between the target's scrobbles, because it leaves
+	 * any claims behind. Returns the entries that the cursor passed, oldest
+	 * first.
+	 */
+	List<QueueEntry> trim(Cursor c, int max) {
+		final long last = lastPosition();
+		Node n = c.acked;
+		if (last - n.position <= max) {
+			return Collections.emptyList();
+		}
+		final ArrayList<QueueEntry> passed =
+			new ArrayList<QueueEntry>((int) (last - n.position - max));
+		while (last - n.position > max) {
+			n = n.next;
+			passed.add(n.entry);
+		}
+		c.acked = n;
+		return passed;
+	}
+
+	/**
+	 * Returns the entries that have been acknowledged by every cursor since
+	 * the last time that this was called, oldest first, and forgets them.
+	 */
+	List<QueueEntry> reclaim() {
+		while (true) {
+			final Node from = reclaimed.get();
+			Node to = null;
+			for (Cursor other : cursors) {
+				final Node a = other.acked;
+				if (to == null || a.position < to.position) {
+					to = a;
+				}
+			}
+			if (to == null || to.position <= from.position) {
+				return Collections.emptyList();
+			}
+			if (reclaimed.compareAndSet(from, to)) {
+				final ArrayList<QueueEntry> entries = new ArrayList<QueueEntry>(
+					(int) (to.position - from.position));
+				for (Node n = from; n != to; ) {
+					n = n.next;
+					entries.add(n.entry);
+				}
+				return entries;
+			}
+		}
+	}
+
+	// The tail can be behind a node that has just been linked, which might
+	// even have been acknowledged already, so we have to look past it.
+	private long lastPosition() {
+		Node t = tail.get();
+		while (t.next != null) {
+			t = t.next;
+		}
+		return t.position;
+	}
+
+	/**
+	 * Returns the number of entries that the cursor's target hasn't had
+	 * acknowledged yet.
+	 */
+	int getPending(Cursor c) {
+		final Node acked = c.acked;
+		return (int) (lastPosition() - acked.position);
+	}
+
+	/**
+	 * Returns the number of entries that haven't been acknowledged by every
+	 * target.
+	 */
+	int size() {
+		final Node r = reclaimed.get();
+		return (int) (lastPosition() - r.position);
+	}
+}
@@ -0,0 +1,189 @@
+package net.jjc1138.android.scrobbler;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs scrobbles one at a time on a single worker thread that lives as long as
+ * the service. Scrobbling must be done chronologically, so it is not
+ * allowable for two scrobbles to the same target to run at once. Each target
+ * has its own scheduler, so different targets scrobble concurrently.
+ *
+ * The scheduler is always in one of these states:
+ *  IDLE        Nothing is happening.
+ *  QUEUED      A scrobble has been requested but hasn't started yet.
+ *  HANDSHAKING A scrobble is running and is getting a session.
+ *  SUBMITTING  A scrobble is running and is submitting tracks.
+ *  BACKOFF     Nothing is happening, and we're waiting for an alarm before we
+ *              try to handshake again.
+ *
+ * Requests made while a scrobble is queued or running are coalesced into it,
+ * because it will keep going until the queue is empty anyway.
+ */
+final class ScrobbleScheduler {
+	static final int IDLE = 0;
+	static final int QUEUED = 1;
+	static final int HANDSHAKING = 2;
+	static final int SUBMITTING = 3;
+	static final int BACKOFF = 4;
+
+	private final Runnable scrobble;
+	private final ExecutorService worker;
+	private final AtomicInteger state = new AtomicInteger(IDLE);
+	private volatile boolean cancelled = false;
+
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong coalesced = new AtomicLong();
+
+	ScrobbleScheduler(Runnable scrobble, String threadName) {
+		this.scrobble = scrobble;
+		worker = Executors.newSingleThreadExecutor(namedThreads(threadName));
+	}
+
+	static ThreadFactory namedThreads(final String name) {
+		return new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				return new Thread(r, name);
+			}
+		};
+	}
+
+	private static boolean isBusy(int s) {
+		return s == QUEUED || s == HANDSHAKING || s == SUBMITTING;
+	}
+
+	private final Runnable run = new Runnable() {
+		@Override
+		public void run() {
+			if (!state.compareAndSet(QUEUED, HANDSHAKING)) {
+				return;
+			}
+			try {
+				scrobble.run();
+			} finally {
+				// In case the scrobble ended without calling finish():
+				state.compareAndSet(HANDSHAKING, IDLE);
+				state.compareAndSet(SUBMITTING, IDLE);
+			}
+		}
+	};
+
+	/**
+	 * Starts a scrobble unless one is already queued or running. Returns true
+	 * if a new one was started.
+	 */
+	boolean request() {
+		requests.incrementAndGet();
+		if (cancelled) {
+			return false;
+		}
+		while (true) {
+			final int s = state.get();
+			if (isBusy(s)) {
+				coalesced.incrementAndGet();
+				return false;
+			}
+			if (state.compareAndSet(s, QUEUED)) {
+				break;
+			}
+		}
+		try {
+			worker.execute(run);
+		} catch (RejectedExecutionException e) {
+			// We've been shut down.
+			state.compareAndSet(QUEUED, IDLE);
+			return false;
+		}
+		return true;
+	}
+
+	boolean isScrobbling() {
+		return isBusy(state.get());
+	}
+
+	/**
+	 * This is called by the scrobble when it has finished handshaking.
+	 */
+	void submitting() {
+		state.compareAndSet(HANDSHAKING, SUBMITTING);
+	}
+
+	/**
+	 * This is called by the scrobble as the last thing it does before telling
+	 * anyone that it has finished. The new state should be IDLE or BACKOFF.
+	 */
+	void finish(int newState) {
+		assert !isBusy(newState);
+		final int s = state.get();
+		if (s == HANDSHAKING || s == SUBMITTING) {
+			state.compareAndSet(s, newState);
+		}
+	}
+
+	/**
+	 * This is called when the alarm that we were waiting for in the BACKOFF
+	 * state has gone off.
+	 */
+	void backoffExpired() {
+		state.compareAndSet(BACKOFF, IDLE);
+	}
+
+	/**
+	 * Asks the running scrobble to stop after its current request, and stops
+	 * any more from starting.
+	 */
+	void cancel() {
+		cancelled = true;
+	}
+
+	boolean isCancelled() {
+		return cancelled;
+	}
+
+	/**
+	 * Cancels any running scrobble and waits for up to timeoutMillis for it
+	 * to stop. Returns false if it didn't stop in time.
+	 */
+	boolean shutdown(long timeoutMillis) {
+		cancel();
+		worker.shutdown();
+		try {
+			if (worker.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS)) {
+				return true;
+			}
+		} catch (InterruptedException e) {}
+		worker.shutdownNow();
+		return false;
+	}
+
+	/**
+	 * Runs task on the worker thread, between scrobbles, so that it can use
+	 * the same session and connections as they do without racing them.
+	 * Returns false if we've been shut down.
+	 */
+	boolean execute(Runnable task) {
+		if (cancelled) {
+			return false;
+		}
+		try {
+			worker.execute(task);
+		} catch (RejectedExecutionException e) {
+			return false;
+		}
+		return true;
+	}
+
+	long getRequests() {
+		return requests.get();
+	}
+
+	long getCoalescedRequests() {
+		return coalesced.get();
+	}
+}
@@ -0,0 +1,109 @@
+package net.jjc1138.android.scrobbler;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+
+import android.content.SharedPreferences;
+
+/**
+ * A server that we submit to, and the preferences that say who we are there.
+ * The primary target is Last.fm, which is set up on the settings screen. Any
+ * other Audioscrobbler-compatible servers (such as Libre.fm) are listed by
+ * name, separated by commas, in the "targets" preference, and each of them
+ * has these preferences:
+ *  target.<name>.url      the handshake URL
+ *  target.<name>.username
+ *  target.<name>.password
+ *  target.<name>.gzip     true to try gzipping request bodies ("gzip" for
+ *                         the primary target)
+ * There's no settings screen for the other targets, so they can only be set
+ * up by writing those preferences directly.
+ */
+final class ScrobbleTarget {
+	static final String PRIMARY = "lastfm";
+	static final String LAST_FM_HANDSHAKE_URL =
+		"http://post.audioscrobbler.com:80/";
+
+	final String name;
+	private final String prefix;
+
+	private ScrobbleTarget(String name) {
+		this.name = name;
+		prefix = isPrimary(name) ? "" : "target." + name + ".";
+	}
+
+	private static boolean isPrimary(String name) {
+		return name.equals(PRIMARY);
+	}
+
+	/**
+	 * Returns the primary target followed by the others that are configured,
+	 * in the order that they're listed. The ones that aren't configured are
+	 * left out altogether, so that they don't keep entries in the queue that
+	 * they'll never acknowledge.
+	 */
+	static ArrayList<ScrobbleTarget> fromPreferences(SharedPreferences prefs) {
+		final ArrayList<ScrobbleTarget> targets =
+			new ArrayList<ScrobbleTarget>();
+		final HashSet<String> seen = new HashSet<String>();
+		targets.add(new ScrobbleTarget(PRIMARY));
+		seen.add(PRIMARY);
+		for (String name : prefs.getString("targets", "").split(",")) {
+			name = name.trim();
+			if (name.length() > 0 && seen.add(name)) {
+				final ScrobbleTarget t = new ScrobbleTarget(name);
+				if (t.isConfigured(prefs)) {
+					targets.add(t);
+				}
+			}
+		}
+		return targets;
+	}
+
+	boolean isPrimary() {
+		return isPrimary(name);
+	}
+
+	/**
+	 * Returns the name of a file, preference file or action that belongs to
+	 * this target. The primary target uses the base name, as it always has.
+	 */
+	String suffixed(String base) {
+		return isPrimary() ? base : base + "." + name;
+	}
+
+	/**
+	 * Returns true if changing the given preference changes who we are at
+	 * this target.
+	 */
+	boolean isIdentity(String key) {
+		return key.equals(prefix + "username") ||
+			key.equals(prefix + "password") ||
+			(!isPrimary() && key.equals(prefix + "url"));
+	}
+
+	/**
+	 * Returns false if we don't know enough to scrobble to this target.
+	 */
+	boolean isConfigured(SharedPreferences prefs) {
+		return getUsername(prefs).length() != 0 &&
+			getHandshakeURL(prefs).length() != 0;
+	}
+
+	String getHandshakeURL(SharedPreferences prefs) {
+		return isPrimary() ? LAST_FM_HANDSHAKE_URL :
+			prefs.getString(prefix + "url", "");
+	}
+
+	String getUsername(SharedPreferences prefs) {
+		return prefs.getString(prefix + "username", "");
+	}
+
+	String getPassword(SharedPreferences prefs) {
+		return prefs.getString(prefix + "password", "");
+	}
+
+	boolean isGzipEnabled(SharedPreferences prefs) {
+		return prefs.getBoolean(prefix + "gzip", false);
+	}
+}
@@ -49,6 +49,7 @@ public class ScrobblerConfig extends Activity {
 	private TextView scrobble_status;
 
 	private String scrobbleWaiting;
+	private ChoiceFormat tracksReady;
 
 	private final Handler handler = new Handler();
 
@@ -72,8 +73,7 @@ public class ScrobblerConfig extends Activity {
 					@Override
 					public void run() {
 						queue_status.setText(MessageFormat.format(
-							new ChoiceFormat(getString(R.string.tracks_ready))
-								.format(queueSize), queueSize));
+							tracksReady.format(queueSize), queueSize));
 						
 						// This is perhaps a tad verbose, but at least it's easy
 						// to read:
@@ -210,6 +210,7 @@ public class ScrobblerConfig extends Activity {
 			text.setSpan(new UnderlineSpan(), 0, text.length(), 0);
 		}
 		
+		tracksReady = new ChoiceFormat(getString(R.string.tracks_ready));
 		scrobbleWaiting =
 			MessageFormat.format(getString(R.string.scrobble_when),
 				MessageFormat.format(
@@ -1,9 +1,14 @@
 package net.jjc1138.android.scrobbler;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
@@ -16,42 +21,38 @@ import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
 import java.util.NoSuchElementException;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
-import org.apache.http.HttpVersion;
-import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
-import org.apache.http.entity.StringEntity;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.params.BasicHttpParams;
-import org.apache.http.params.HttpParams;
-import org.apache.http.params.HttpProtocolParams;
-import org.apache.http.util.EntityUtils;
+import org.apache.http.entity.AbstractHttpEntity;
 
 import android.app.AlarmManager;
 import android.app.Notification;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.app.Service;
-import android.content.ContentUris;
+import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.SharedPreferences;
 import android.content.SharedPreferences.OnSharedPreferenceChangeListener;
 import android.content.pm.PackageManager.NameNotFoundException;
-import android.database.Cursor;
+import android.net.ConnectivityManager;
+import android.os.Bundle;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.PowerManager;
-import android.os.RemoteCallbackList;
 import android.os.RemoteException;
 import android.os.SystemClock;
-import android.provider.MediaStore;
 import android.util.Log;
 
 class InvalidMetadataException extends Exception {
@@ -75,7 +76,23 @@ class Track implements Serializable {
 		return i.getIntExtra("id", def);
 	}
 
-	public Track(Intent i, Context c) throws InvalidMetadataException {
+	Track(long id, char source, String artist, String track, Long length,
+		String album, Integer tracknumber, String mbtrackid) {
+		
+		this.id = id;
+		this.source = source;
+		this.artist = artist;
+		this.track = track;
+		this.length = length;
+		this.album = album;
+		this.tracknumber = tracknumber;
+		this.mbtrackid = mbtrackid;
+		fingerprint = computeFingerprint();
+	}
+
+	public Track(Intent i, MediaStoreCache mediaStore)
+		throws InvalidMetadataException {
+		
 		String iSource = i.getStringExtra("source");
 		if (iSource == null || iSource.length() < 1) {
 			source = 'P';
@@ -89,59 +106,36 @@ class Track implements Serializable {
 		id = getID(i);
 		
 		if (id != -1) {
-			final String[] columns = new String[] {
-				MediaStore.Audio.AudioColumns.ARTIST,
-				MediaStore.Audio.AudioColumns.TITLE,
-				MediaStore.Audio.AudioColumns.DURATION,
-				MediaStore.Audio.AudioColumns.ALBUM,
-				MediaStore.Audio.AudioColumns.TRACK,
-			};
-			Cursor cur = c.getContentResolver().query(
-				ContentUris.withAppendedId(
-					MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, id),
-				columns, null, null, null);
-			if (cur == null) {
-				throw new NoSuchElementException();
-			}
+			final MediaStoreCache.Metadata m = mediaStore.get(id);
+			final String UNKNOWN = "<unknown>";
 			
-			try {
-				final String UNKNOWN = "<unknown>";
-				
-				if (!cur.moveToFirst()) {
-					throw new IncompleteMetadataException();
-				}
-				artist = cur.getString(cur.getColumnIndex(
-					MediaStore.Audio.AudioColumns.ARTIST));
-				if (artist.length() == 0 || artist.equals(UNKNOWN)) {
-					throw new IncompleteMetadataException();
-				}
-				track = cur.getString(cur.getColumnIndex(
-					MediaStore.Audio.AudioColumns.TITLE));
-				if (track.length() == 0 || track.equals(UNKNOWN)) {
-					throw new IncompleteMetadataException();
-				}
-				length = cur.getLong(cur.getColumnIndex(
-					MediaStore.Audio.AudioColumns.DURATION));
-				if (length == 0) {
-					length = null;
-				}
-				album = cur.getString(cur.getColumnIndex(
-					MediaStore.Audio.AudioColumns.ALBUM));
-				if (album.length() == 0 || album.equals(UNKNOWN)) {
-					album = null;
-				}
-				tracknumber = cur.getInt(cur.getColumnIndex(
-					MediaStore.Audio.AudioColumns.TRACK));
-				// The track number is returned with an encoding of the disc
-				// number too. We don't need the disc number:
-				tracknumber %= 1000;
-				if (tracknumber == 0) {
-					tracknumber = null;
-				}
-				mbtrackid = null;
-			} finally {
-				cur.close();
+			if (m == null) {
+				throw new IncompleteMetadataException();
+			}
+			artist = m.artist;
+			if (artist.length() == 0 || artist.equals(UNKNOWN)) {
+				throw new IncompleteMetadataException();
+			}
+			track = m.title;
+			if (track.length() == 0 || track.equals(UNKNOWN)) {
+				throw new IncompleteMetadataException();
+			}
+			length = m.duration;
+			if (length == 0) {
+				length = null;
+			}
+			album = m.album;
+			if (album.length() == 0 || album.equals(UNKNOWN)) {
+				album = null;
+			}
+			tracknumber = m.track;
+			// The track number is returned with an encoding of the disc
+			// number too. We don't need the disc number:
+			tracknumber %= 1000;
+			if (tracknumber == 0) {
+				tracknumber = null;
 			}
+			mbtrackid = null;
 		} else {
 			// These are required:
 			artist = i.getStringExtra("artist");
@@ -179,6 +173,70 @@ class Track implements Serializable {
 				mbtrackid = null;
 			}
 		}
+		fingerprint = computeFingerprint();
+	}
+
+	private void readObject(ObjectInputStream in)
+		throws IOException, ClassNotFoundException {
+		
+		in.defaultReadObject();
+		fingerprint = computeFingerprint();
+	}
+
+	// The fingerprint is a 64-bit FNV-1a hash of everything that equals()
+	// compares, so tracks that are equal always have the same fingerprint,
+	// and tracks with different fingerprints can't be equal.
+	private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	private static long fnv(long h, long value) {
+		for (int i = 0; i < 8; ++i) {
+			h ^= value & 0xff;
+			h *= FNV_PRIME;
+			value >>>= 8;
+		}
+		return h;
+	}
+
+	private static long fnv(long h, String s) {
+		if (s == null) {
+			// This can't collide with a String's length:
+			return fnv(h, -1);
+		}
+		final int length = s.length();
+		for (int i = 0; i < length; ++i) {
+			final char c = s.charAt(i);
+			h ^= c & 0xff;
+			h *= FNV_PRIME;
+			h ^= c >>> 8;
+			h *= FNV_PRIME;
+		}
+		// Including the length means that the fields can't run into each
+		// other, e.g. ("ab", "c") and ("a", "bc").
+		return fnv(h, length);
+	}
+
+	private long computeFingerprint() {
+		long h = fnv(FNV_OFFSET_BASIS, id);
+		if (id != -1) {
+			// MediaStore tracks are identified by their ID alone.
+			return h;
+		}
+		h = fnv(h, source);
+		h = fnv(h, artist);
+		h = fnv(h, track);
+		h = fnv(h, length == null ? -1 : length);
+		h = fnv(h, album);
+		h = fnv(h, tracknumber == null ? -1 : tracknumber);
+		return fnv(h, mbtrackid);
+	}
+
+	private static boolean same(Object a, Object b) {
+		return a == null ? b == null : a.equals(b);
+	}
+
+	public long getID() {
+		return id;
 	}
 
 	public String getArtist() {
@@ -219,22 +277,25 @@ class Track implements Serializable {
 			return false;
 		}
 		Track other = (Track) o;
-		if (id != -1) {
+		if (fingerprint != other.fingerprint) {
+			return false;
+		}
+		if (id != -1 || other.id != -1) {
 			return id == other.id;
 		}
 		return
-			artist == other.artist &&
-			track == other.track &&
 			source == other.source &&
-			length == other.length &&
-			album == other.album &&
-			tracknumber == other.tracknumber &&
-			mbtrackid == other.mbtrackid;
+			same(artist, other.artist) &&
+			same(track, other.track) &&
+			same(length, other.length) &&
+			same(album, other.album) &&
+			same(tracknumber, other.tracknumber) &&
+			same(mbtrackid, other.mbtrackid);
 	}
 
 	@Override
 	public int hashCode() {
-		return (int) id;
+		return (int) (fingerprint ^ (fingerprint >>> 32));
 	}
 
 	@Override
@@ -253,6 +314,8 @@ class Track implements Serializable {
 	private Integer tracknumber;
 	private String mbtrackid;
 
+	private transient long fingerprint;
+
 	private static final long serialVersionUID = 1L;
 }
 
@@ -262,24 +325,61 @@ class QueueEntry implements Serializable {
 		this.startTime = startTime;
 	}
 
+	// This is used by TrackCodec to defer decoding the Track until it is
+	// needed.
+	QueueEntry(byte[] encoded, int trackOffset, long startTime) {
+		this.encoded = encoded;
+		this.trackOffset = trackOffset;
+		this.startTime = startTime;
+	}
+
+	// This returns null if the entry was loaded lazily and loadTrack() hasn't
+	// been called yet.
 	public Track getTrack() {
 		return track;
 	}
 
+	// Every target's scrobble task can load the same entry at once, so this
+	// is synchronized, and track is volatile so that getTrack() sees the
+	// result without taking the lock.
+	synchronized void loadTrack() throws IOException {
+		if (track == null) {
+			track = TrackCodec.decodeTrackBody(encoded, trackOffset);
+			encoded = null;
+		}
+	}
+
 	public long getStartTime() {
 		return startTime;
 	}
 
-	private Track track;
+	long getSequence() {
+		return sequence;
+	}
+
+	void setSequence(long sequence) {
+		this.sequence = sequence;
+	}
+
+	private volatile Track track;
+	private transient byte[] encoded;
+	private transient int trackOffset;
 	private long startTime;
+	// This is assigned by the QueueStore when the entry is stored. It is zero
+	// if the entry hasn't been stored.
+	private transient long sequence;
 
 	private static final long serialVersionUID = 1L;
 }
 
 class Session {
-	Session(String id, String submissionURL) {
+	Session(String id, String nowPlayingURL, String submissionURL,
+		long issuedTime) {
+		
 		this.id = id;
+		this.nowPlayingURL = nowPlayingURL;
 		this.submissionURL = submissionURL;
+		this.issuedTime = issuedTime;
 		this.valid = true;
 	}
 
@@ -287,10 +387,18 @@ class Session {
 		return id;
 	}
 
+	public String getNowPlayingURL() {
+		return nowPlayingURL;
+	}
+
 	public String getSubmissionURL() {
 		return submissionURL;
 	}
 
+	public long getIssuedTime() {
+		return issuedTime;
+	}
+
 	public void invalidate() {
 		valid = false;
 	}
@@ -300,29 +408,57 @@ class Session {
 	}
 
 	private String id;
+	private String nowPlayingURL;
 	private String submissionURL;
-	private boolean valid;
+	private long issuedTime;
+	private volatile boolean valid;
 }
 
 public class ScrobblerService extends Service {
 	// This is the maximum number of tracks that we can submit in one request:
 	static final int MAX_SCROBBLE_TRACKS = 50;
+	// This is how long onDestroy() will wait for a running scrobble to stop.
+	static final int SCROBBLE_SHUTDOWN_TIMEOUT = 5000;
 	static final int INITIAL_HANDSHAKE_RETRY_WAITING_TIME = 60000;
 
 	// This is the number of tracks that we will wait to have queued before we
 	// scrobble. It can be larger or smaller than MAX_SCROBBLE_TRACKS.
 	static final int SCROBBLE_BATCH_SIZE = MAX_SCROBBLE_TRACKS;
+	// This is the most entries that we keep for a secondary target that can't
+	// scrobble, because it isn't configured any more or the user has to fix
+	// something. Entries can't be forgotten until every target has
+	// acknowledged them, so otherwise one broken target would make the queue
+	// and the journal grow for ever. The primary target keeps everything, as
+	// it always has, because the settings screen tells the user about it.
+	static final int MAX_STUCK_BACKLOG = 10000;
 	// This is how long we will wait after music has stopped playing before
 	// scrobbling.
 	static final int SCROBBLE_WAITING_TIME_MINUTES = 1;
+	// This is how long a track has to have been playing before we send a now
+	// playing notification for it, so that skipping through several tracks
+	// only sends one for the track that the user settles on.
+	static final int NOW_PLAYING_DELAY = 5000;
+	// Request bodies smaller than this aren't worth gzipping, even for a
+	// target that accepts it:
+	static final int GZIP_MIN_SIZE = 512;
 
 	static final String LOG_TAG = "Scrobble Droid";
 	static final String PREFS = "prefs";
+	// The last session is kept here, so that we don't have to handshake
+	// every time that we are started. It's separate from PREFS so that
+	// saving it doesn't look like a change in the settings.
+	static final String SESSION_PREFS = "session";
 	static final String LAST_PLAYING_FILENAME = "lastplaying";
 	static final String WAITING_TIME_FILENAME = "waitingtime";
 	static final String LAST_SCROBBLE_RESULT_FILENAME = "lastscrobbleresult";
 	private static final String ACTION_RETRY_HANDSHAKE =
 		"net.jjc1138.android.scrobbler.action.RETRY_HANDSHAKE";
+	private static final String ACTION_CHECK_IDLE =
+		"net.jjc1138.android.scrobbler.action.CHECK_IDLE";
+	private static final String ACTION_POLL_MUSIC_STATUS =
+		"net.jjc1138.android.scrobbler.action.POLL_MUSIC_STATUS";
+	private static final String ACTION_ANNOUNCE_NOW_PLAYING =
+		"net.jjc1138.android.scrobbler.action.ANNOUNCE_NOW_PLAYING";
 
 	static final int OK = 0;
 	static final int NOT_YET_ATTEMPTED = 1;
@@ -332,79 +468,82 @@ public class ScrobblerService extends Service {
 	static final int FAILED_NET = 5;
 	static final int FAILED_OTHER = 6;
 
-	private final RemoteCallbackList<IScrobblerServiceNotificationHandler>
-		notificationHandlers =
-		new RemoteCallbackList<IScrobblerServiceNotificationHandler>();
+	private ClientNotifier clients;
 	private SharedPreferences prefs;
 	private OnSharedPreferenceChangeListener prefsChanged;
 	private String appVersionName;
-	private PowerManager.WakeLock wakeLock;
-
-	private volatile int lastScrobbleResult = NOT_YET_ATTEMPTED;
-	private ConcurrentLinkedQueue<QueueEntry> queue =
-		new ConcurrentLinkedQueue<QueueEntry>();
-	// When the scrobble thread is preparing to scrobble it moves the
-	// QueueEntries into this list. It might still exist even when the scrobble
-	// thread is not running, because the scrobbling may have failed.
-	private ArrayList<QueueEntry> submission = new ArrayList<QueueEntry>();
-
+	private final ScrobblerStats stats = new ScrobblerStats();
+	private WakeLocks wakeLocks;
+	private Timers timers;
+
+	private final ScrobbleQueue queue = new ScrobbleQueue();
+
+	// The queue is loaded from the QueueStore on another thread so that we can
+	// handle the intent that started us straight away, however long the queue
+	// is. Until it has been loaded, newly enqueued entries wait in this list,
+	// which is only modified on the main thread. It is null once the queue
+	// has been loaded.
+	private volatile ArrayList<QueueEntry> enqueuedWhileLoading =
+		new ArrayList<QueueEntry>();
+	// This is the size of that list, which can be read from any thread.
+	private volatile int enqueuedWhileLoadingCount = 0;
+
+	// This is the number of entries that haven't been acknowledged by every
+	// target, which is what the store has to keep. It can be called from any
+	// thread.
 	private int queueSize() {
-		return submission.size() + queue.size();
+		return queue.size() + enqueuedWhileLoadingCount;
+	}
+
+	// This is the number of entries that haven't been acknowledged by the
+	// primary target, which is what clients show as the tracks waiting to be
+	// scrobbled. A target that is down mustn't make it look like the primary
+	// one is behind. It can be called from any thread.
+	private int primaryQueueSize() {
+		return primary.getPending() + enqueuedWhileLoadingCount;
 	}
 
-	private File queueDir;
+	private QueueStore store;
+	private AckIndex acked;
+	private MediaStoreCache mediaStore;
+	private ConnectivityGate connectivity;
+	private BroadcastReceiver connectivityChanged;
+	private final StatusDebouncer statusDebouncer =
+		new StatusDebouncer(StatusDebouncer.DEFAULT_WINDOW);
+	private HttpTransport transport;
 
-	private QueueEntry lastPlaying = null;
-	private boolean lastPlayingWasPaused = true;
-	private long lastPlayingTimePlayed = 0;
-	private long lastResumedTime = -1;
+	private PlayTracker tracker;
+
+	// This is the track that we'll send a now playing notification for when
+	// it has been playing for NOW_PLAYING_DELAY. It's only used on the main
+	// thread.
+	private QueueEntry nowPlayingCandidate = null;
 
 	// This is a horrible workaround. see the comment in stopIfIdle() for
 	// explanation:
 	private boolean lastPlayingFromMusicStatusFetcher = false;
 	private String lastPlayingMusicStatusFetcherBroadcastAction = null;
 
-	// Scrobbling must be done chronologically, so it is not allowable for two
-	// threads to be scrobbling at once. To help ensure this, only one function
-	// (scrobbleNow()) may start new scrobbling Threads, and it is synchronized.
-	private ScrobbleThread scrobbleThread = null;
+	// There is a ScrobbleTask for each target that we submit to, and the
+	// first one is for the primary target. They're created in onCreate() and
+	// don't change after that.
+	private ScrobbleTask[] tasks;
+	private ScrobbleTask primary;
 	private Handler handler;
 	private boolean bound = false;
-	// This is the time of the last "meaningful" event, i.e. a track that was
-	// playing being paused, or vice-versa, or a new track being played.
-	private long lastEventTime = -1;
-
-	// This musn't be reassigned unless the caller holds the handshaking lock as
-	// described below. It is acceptable to invalidate() the Session without
-	// holding the lock.
-	private Session session;
-	// It would be bad if two threads were handshaking at the same time so
-	// anyone who wants to handshake must synchronize on the following object.
-	// After that lock is obtained, they must then check to see if the above
-	// Session isValid(). If so they should take their own copy of the reference
-	// to it, and then release the lock and attempt to use that Session. If it
-	// wasn't valid then they should handshake, store the new Session in the
-	// above variable and then release the lock.
-	private Object handshaking = new Object();
-
-	private int hardFailures = 0;
-	private int handshakeRetryWaitingTime =
-		INITIAL_HANDSHAKE_RETRY_WAITING_TIME;
-	private volatile boolean handshakeRetryAlarmSet = false;
 
 	@Override
 	public void onCreate() {
 		super.onCreate();
 		
-		wakeLock = ((PowerManager) getSystemService(POWER_SERVICE))
-			.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, LOG_TAG);
-		wakeLock.setReferenceCounted(false);
-		// We hold onto this WakeLock whenever this service is running. That may
-		// seem reckless at first glance, but we carefully manage the lifetime
-		// of the service and shut it down when it isn't needed (in
-		// stopIfIdle()), so we don't keep the device awake for longer than is
-		// necessary.
-		wakeLock.acquire();
+		// We only keep the device awake while we're doing something: handling
+		// an intent, loading the queue, or scrobbling. Anything that we have
+		// to wait for is done with an alarm, so that the device can sleep
+		// while we're waiting, even though the service is still running.
+		wakeLocks = new WakeLocks(
+			(PowerManager) getSystemService(POWER_SERVICE), LOG_TAG,
+			stats.wakeLockHeldTime);
+		timers = new Timers(this);
 		
 		prefs = getSharedPreferences(PREFS, 0);
 		prefsChanged = new OnSharedPreferenceChangeListener() {
@@ -412,12 +551,14 @@ public class ScrobblerService extends Service {
 			public void onSharedPreferenceChanged(
 				SharedPreferences sharedPreferences, String key) {
 				
-				// Force a rehandshake on the next scrobble:
-				session.invalidate();
-				
-				if (lastScrobbleResult == BADAUTH) {
-					lastScrobbleResult = NOT_YET_ATTEMPTED;
-					updateAllClients();
+				for (ScrobbleTask t : tasks) {
+					if (t.target.isIdentity(key)) {
+						t.identityChanged();
+					}
+					if (t.result == BADAUTH) {
+						t.result = NOT_YET_ATTEMPTED;
+						updateAllClients();
+					}
 				}
 				
 				// This will do a scrobble if it's appropriate to do one now, or
@@ -427,9 +568,75 @@ public class ScrobblerService extends Service {
 		};
 		prefs.registerOnSharedPreferenceChangeListener(prefsChanged);
 		handler = new Handler();
+		clients = new ClientNotifier(handler, new ClientNotifier.State() {
+			@Override
+			public int getQueueSize() {
+				return primaryQueueSize();
+			}
+
+			@Override
+			public boolean isScrobbling() {
+				return ScrobblerService.this.isScrobbling();
+			}
+
+			@Override
+			public int getLastScrobbleResult() {
+				return primary.result;
+			}
+		}, ClientNotifier.DEFAULT_INTERVAL);
+		tracker = new PlayTracker(PlayTracker.SYSTEM_CLOCK,
+			new PlayTracker.Scheduler() {
+				@Override
+				public void schedule(Runnable task, long delayMillis) {
+					timers.set(ACTION_CHECK_IDLE, delayMillis, task);
+				}
+			}, new PlayTracker.Listener() {
+				@Override
+				public void enqueued(QueueEntry entry, int reason) {
+					enqueue(entry);
+					switch (reason) {
+					case PlayTracker.REPEATED:
+						Log.v(LOG_TAG, "Enqueued repeating track.");
+						break;
+					case PlayTracker.CHANGED:
+						Log.v(LOG_TAG, "Enqueued previous track.");
+						break;
+					case PlayTracker.STOPPED:
+						Log.v(LOG_TAG, "Enqueued paused/stopped track.");
+						break;
+					case PlayTracker.IDLE:
+						Log.v(LOG_TAG,
+							"Enqueued previously paused/stopped track.");
+						break;
+					}
+					updatedQueue();
+				}
+
+				@Override
+				public void started(QueueEntry entry) {
+					stats.nowPlayingRequested();
+					nowPlayingCandidate = entry;
+					// This is an alarm rather than a Handler callback so that
+					// it still goes off if the device sleeps in the meantime.
+					timers.set(ACTION_ANNOUNCE_NOW_PLAYING, NOW_PLAYING_DELAY,
+						announceNowPlaying);
+				}
+
+				@Override
+				public void log(String message) {
+					Log.v(LOG_TAG, message);
+				}
+			});
 		
-		session = new Session("", "");
-		session.invalidate();
+		final ArrayList<ScrobbleTarget> targets =
+			ScrobbleTarget.fromPreferences(prefs);
+		tasks = new ScrobbleTask[targets.size()];
+		final String[] targetNames = new String[targets.size()];
+		for (int i = 0; i < tasks.length; ++i) {
+			tasks[i] = new ScrobbleTask(targets.get(i));
+			targetNames[i] = targets.get(i).name;
+		}
+		primary = tasks[0];
 		
 		try {
 			appVersionName = getPackageManager().getPackageInfo(
@@ -438,116 +645,300 @@ public class ScrobblerService extends Service {
 			assert false;
 		}
 		
-		queueDir = getDir("queue", 0);
-		File[] queueFiles = queueDir.listFiles();
-		if (queueFiles == null) {
-			// It's not documented, but presumably getDir can fail if filesystem
-			// space is extremely low.
-			queueFiles = new File[] {};
-		}
-		Arrays.sort(queueFiles, new Comparator<File>() {
-			@Override
-			public int compare(File f1, File f2) {
-				long l;
-				try {
-					l = Long.parseLong(f1.getName()) -
-						Long.parseLong(f2.getName());
-				} catch (NumberFormatException e) {
-					// Not our file. Oh dear.
-					return 0;
-				}
-				if (l < 0) {
-					return -1;
-				} else if (l > 0) {
-					return 1;
-				} else {
-					return 0;
+		connectivity = new ConnectivityGate(
+			(ConnectivityManager) getSystemService(CONNECTIVITY_SERVICE),
+			handler, new Runnable() {
+				@Override
+				public void run() {
+					Log.v(LOG_TAG, "Back online, so scrobbling.");
+					scrobbleNow();
 				}
+			});
+		connectivityChanged = new BroadcastReceiver() {
+			@Override
+			public void onReceive(Context context, Intent intent) {
+				connectivity.update();
 			}
-		});
-		for (File f : queueFiles) {
-			FileInputStream fis;
+		};
+		registerReceiver(connectivityChanged,
+			new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+		// We'll hear about changes while we're running from the receiver
+		// above, so we don't need to be started by them:
+		ConnectivityReceiver.setEnabled(this, false);
+		
+		mediaStore = new MediaStoreCache(getContentResolver(), handler,
+			MediaStoreCache.DEFAULT_CAPACITY, stats.mediaStoreLookupTime);
+		mediaStore.start();
+		transport = new HttpTransport();
+		store = new JournalQueueStore(getDir("journal", 0), targetNames);
+		acked = new AckIndex(getDir("journal", 0), "acked");
+		loadQueue();
+		
+		try {
+			FileInputStream fis = openFileInput(LAST_PLAYING_FILENAME);
+			byte[] data;
 			try {
-				fis = new FileInputStream(f);
-				ObjectInputStream ois = new ObjectInputStream(fis);
+				data = readAll(fis);
+			} finally {
+				fis.close();
+			}
+			if (TrackCodec.isSerialized(data)) {
+				// Written by an older version:
+				ObjectInputStream ois =
+					new ObjectInputStream(new ByteArrayInputStream(data));
 				
-				queue.add(new QueueEntry((Track) ois.readObject(),
-					Long.parseLong(f.getName())));
+				QueueEntry lastPlaying = (QueueEntry) ois.readObject();
+				tracker.restore(lastPlaying, ois.readLong());
 				
 				ois.close();
-				fis.close();
-			} catch (StreamCorruptedException e) {
-			} catch (IOException e) {
-			} catch (NumberFormatException e) {
-			} catch (ClassNotFoundException e) {}
-		}
-		
-		try {
-			FileInputStream fis = openFileInput(LAST_PLAYING_FILENAME);
-			ObjectInputStream ois = new ObjectInputStream(fis);
-			
-			lastPlaying = (QueueEntry) ois.readObject();
-			lastPlayingTimePlayed = ois.readLong();
-			
-			ois.close();
-			fis.close();
+			} else {
+				DataInputStream dis =
+					new DataInputStream(new ByteArrayInputStream(data));
+				
+				byte[] entry = new byte[dis.readInt()];
+				dis.readFully(entry);
+				tracker.restore(TrackCodec.decodeEntry(entry), dis.readLong());
+				
+				dis.close();
+			}
 		} catch (StreamCorruptedException e) {
 		} catch (IOException e) {
-		} catch (ClassNotFoundException e) {}
+		} catch (ClassNotFoundException e) {
+		} catch (ClassCastException e) {}
 		deleteFile(LAST_PLAYING_FILENAME);
 		
 		try {
 			FileInputStream fis = openFileInput(LAST_SCROBBLE_RESULT_FILENAME);
 			ObjectInputStream ois = new ObjectInputStream(fis);
 			
-			lastScrobbleResult = ois.readInt();
+			primary.result = ois.readInt();
 			
 			ois.close();
 			fis.close();
 		} catch (StreamCorruptedException e) {
 		} catch (IOException e) {}
 		deleteFile(LAST_SCROBBLE_RESULT_FILENAME);
+	}
+
+	private void loadQueue() {
+		final File queueDir = getDir("queue", 0);
+		// This is released by queueLoaded():
+		wakeLocks.acquire(WakeLocks.LOADING);
+		new Thread("QueueLoader") {
+			@Override
+			public void run() {
+				acked.load();
+				final ArrayList<QueueEntry> loaded =
+					new ArrayList<QueueEntry>();
+				int skipped = 0;
+				try {
+					// Anything that the server has already accepted is left
+					// out, even if the store doesn't know that.
+					for (QueueEntry e : store.load()) {
+						if (acked.contains(e.getStartTime())) {
+							++skipped;
+						} else {
+							loaded.add(e);
+						}
+					}
+				} catch (IOException e) {
+					Log.w(LOG_TAG, "Couldn't load the scrobbling queue.");
+				}
+				if (skipped > 0) {
+					Log.v(LOG_TAG, "Skipped " + skipped +
+						" track(s) that were already acknowledged.");
+				}
+				migrateLegacyQueue(queueDir, loaded);
+				handler.post(new Runnable() {
+					@Override
+					public void run() {
+						queueLoaded(loaded);
+					}
+				});
+			}
+		}.start();
+	}
+
+	private void queueLoaded(ArrayList<QueueEntry> loaded) {
+		try {
+			Log.v(LOG_TAG, "Loaded " + loaded.size() + " queued track(s).");
+			queue.addAll(loaded);
+			// Each target might have got further than the others:
+			for (ScrobbleTask t : tasks) {
+				queue.skip(t.cursor, store.getAcknowledged(t.target.name));
+			}
+			final ArrayList<QueueEntry> waiting = enqueuedWhileLoading;
+			enqueuedWhileLoading = null;
+			enqueuedWhileLoadingCount = 0;
+			for (QueueEntry e : waiting) {
+				enqueue(e);
+			}
+			
+			if (!loaded.isEmpty()) {
+				// Presumably it's been more than SCROBBLE_WAITING_TIME since
+				// the device was switched off.
+				scrobbleNow();
+			}
+			updatedQueue();
+			// We didn't let this do anything while we were loading:
+			stopIfIdle();
+		} finally {
+			wakeLocks.release(WakeLocks.LOADING);
+		}
+	}
+
+	// Older versions stored each queue entry in its own file in the "queue"
+	// directory, named after its start time. Move any that are left over into
+	// the QueueStore, adding them to the loaded entries.
+	private void migrateLegacyQueue(
+		File queueDir, ArrayList<QueueEntry> loaded) {
 		
-		if (queueSize() > 0) {
-			// Presumably it's been more than SCROBBLE_WAITING_TIME since the
-			// device was switched off.
-			scrobbleNow();
+		String[] names = queueDir.list();
+		if (names == null) {
+			// It's not documented, but presumably getDir can fail if filesystem
+			// space is extremely low.
+			names = new String[] {};
+		}
+		long[] startTimes = new long[names.length];
+		int n = 0;
+		for (String name : names) {
+			try {
+				startTimes[n] = Long.parseLong(name);
+				++n;
+			} catch (NumberFormatException e) {
+				// Not our file. Oh dear.
+			}
+		}
+		if (n == 0) {
+			return;
+		}
+		Arrays.sort(startTimes, 0, n);
+		
+		// If we were interrupted while migrating last time then some of the
+		// files will already be in the store:
+		final HashSet<Long> stored = new HashSet<Long>();
+		for (QueueEntry e : loaded) {
+			stored.add(e.getStartTime());
+		}
+		for (int i = 0; i < n; ++i) {
+			final File f = new File(queueDir, Long.toString(startTimes[i]));
+			try {
+				FileInputStream fis = new FileInputStream(f);
+				byte[] data;
+				try {
+					data = readAll(fis);
+				} finally {
+					fis.close();
+				}
+				
+				if (!stored.contains(startTimes[i]) &&
+					!acked.contains(startTimes[i])) {
+					
+					QueueEntry entry = new QueueEntry(
+						TrackCodec.decodeTrack(data), startTimes[i]);
+					store.append(entry);
+					loaded.add(entry);
+				}
+				f.delete();
+			} catch (IOException e) {}
 		}
 	}
 
-	private boolean lastScrobbleUserFailure() {
-		return
-			lastScrobbleResult == BANNED ||
-			lastScrobbleResult == BADAUTH ||
-			lastScrobbleResult == BADTIME;
+	private static byte[] readAll(InputStream in) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		byte[] buffer = new byte[1024];
+		int n;
+		while ((n = in.read(buffer)) != -1) {
+			bos.write(buffer, 0, n);
+		}
+		return bos.toByteArray();
 	}
 
 	@Override
 	public void onDestroy() {
 		super.onDestroy();
 		prefs.unregisterOnSharedPreferenceChangeListener(prefsChanged);
-		wakeLock.release();
+		// They're all cancelled first so that they stop at the same time:
+		for (ScrobbleTask t : tasks) {
+			t.scheduler.cancel();
+		}
+		boolean stopped = true;
+		for (ScrobbleTask t : tasks) {
+			if (!t.scheduler.shutdown(SCROBBLE_SHUTDOWN_TIMEOUT)) {
+				Log.w(LOG_TAG, "Scrobbling to " + t.target.name +
+					" didn't stop in time.");
+				stopped = false;
+			}
+			Log.v(LOG_TAG, "Coalesced " + t.scheduler.getCoalescedRequests() +
+				" of " + t.scheduler.getRequests() + " scrobble request(s) " +
+				"to " + t.target.name + ".");
+		}
+		clients.kill();
+		unregisterReceiver(connectivityChanged);
+		Log.v(LOG_TAG, "Held " + connectivity.getHolds() +
+			" scrobble request(s) while offline, for " +
+			connectivity.getGatedTime() + "ms.");
+		mediaStore.stop();
+		Log.v(LOG_TAG, "MediaStore cache: " + mediaStore.getHits() +
+			" hit(s), " + mediaStore.getMisses() + " miss(es), " +
+			mediaStore.getInvalidations() + " invalidation(s).");
+		Log.v(LOG_TAG, "Ignored " + statusDebouncer.getSuppressed() +
+			" duplicate status(es), handled " + statusDebouncer.getAccepted() +
+			".");
+		Log.v(LOG_TAG, "Sent " + clients.getDeliveries() + " of " +
+			clients.getChanges() + " client update(s): " +
+			clients.getCoalesced() + " coalesced, " + clients.getDropped() +
+			" with nobody listening.");
+		Log.v(LOG_TAG, "Made " + transport.getRequests() + " request(s), " +
+			transport.getReusedConnections() + " on reused connections.");
+		if (stopped) {
+			store.close();
+			transport.shutdown();
+		} else {
+			// A scrobble is still using them, and it might yet acknowledge
+			// what it has submitted. They'll be closed along with the
+			// process.
+			Log.w(LOG_TAG, "Leaving the journal and connections open.");
+		}
+		timers.cancelAll();
+		Log.v(LOG_TAG, "Set " + timers.getSet() + " timer(s): " +
+			timers.getCollapsed() + " replaced a pending one, " +
+			timers.getFired() + " fired, " + timers.getStale() + " stale.");
+		final StringBuilder held = new StringBuilder("Held WakeLock for");
+		for (int i = 0; i < WakeLocks.REASONS; ++i) {
+			held.append(i == 0 ? " " : ", ").append(WakeLocks.getName(i))
+				.append(": ").append(wakeLocks.getHeldTime(i)).append("ms");
+		}
+		Log.v(LOG_TAG, held.append('.').toString());
+		// In case a scrobble didn't finish:
+		wakeLocks.releaseAll();
 		Log.v(LOG_TAG, "Service destroyed.");
 	}
 
+	// This can be called from any thread.
 	private boolean isScrobbling() {
-		return scrobbleThread != null && scrobbleThread.inProgress();
+		for (ScrobbleTask t : tasks) {
+			if (t.scheduler.isScrobbling()) {
+				return true;
+			}
+		}
+		return false;
 	}
 
-	synchronized void updateAllClients() {
-		final int N = notificationHandlers.beginBroadcast();
-		for (int i = 0; i < N; ++i) {
-			updateClient(notificationHandlers.getBroadcastItem(i));
+	// Clients aren't told that we're scrobbling while we're only sending a now
+	// playing notification, but we mustn't stop until it has been sent.
+	private boolean isAnnouncing() {
+		for (ScrobbleTask t : tasks) {
+			if (t.isAnnouncing()) {
+				return true;
+			}
 		}
-		notificationHandlers.finishBroadcast();
+		return false;
 	}
 
-	synchronized void updateClient(IScrobblerServiceNotificationHandler h) {
-		try {
-			// As far as I can tell this doesn't have to be called from our main
-			// event thread.
-			h.stateChanged(queueSize(), isScrobbling(), lastScrobbleResult);
-		} catch (RemoteException e) {}
+	// This can be called from any thread, as often as we like.
+	void updateAllClients() {
+		clients.stateChanged();
 	}
 
 	private final IScrobblerService.Stub binder = new IScrobblerService.Stub() {
@@ -556,15 +947,14 @@ public class ScrobblerService extends Service {
 		public void registerNotificationHandler(
 			IScrobblerServiceNotificationHandler h) throws RemoteException {
 			
-			notificationHandlers.register(h);
-			updateClient(h);
+			clients.register(h);
 		}
 
 		@Override
 		public void unregisterNotificationHandler(
 			IScrobblerServiceNotificationHandler h) throws RemoteException {
 			
-			notificationHandlers.unregister(h);
+			clients.unregister(h);
 			handler.post(new Runnable() {
 				@Override
 				public void run() {
@@ -578,6 +968,43 @@ public class ScrobblerService extends Service {
 			scrobbleNow();
 		}
 
+		@Override
+		public Bundle getStats() throws RemoteException {
+			final Bundle b = stats.toBundle();
+			b.putLong("queueDepth", queueSize());
+			b.putInt("acknowledgedIndexSize", acked.size());
+			b.putLong("offlineHolds", connectivity.getHolds());
+			b.putLong("gatedTime", connectivity.getGatedTime());
+			// The primary target's stats are at the top level, and the
+			// others each have a Bundle of their own:
+			primary.putStats(b);
+			for (int i = 1; i < tasks.length; ++i) {
+				final Bundle t = new Bundle();
+				tasks[i].putStats(t);
+				b.putBundle("target." + tasks[i].target.name, t);
+			}
+			b.putLong("mediaStoreCacheHits", mediaStore.getHits());
+			b.putLong("mediaStoreCacheMisses", mediaStore.getMisses());
+			b.putLong("httpRequests", transport.getRequests());
+			b.putLong("httpReusedConnections",
+				transport.getReusedConnections());
+			b.putFloat("httpReuseRate", transport.getReuseRate());
+			for (int i = 0; i < WakeLocks.REASONS; ++i) {
+				b.putLong(WakeLocks.getName(i) + "WakeLockTime",
+					wakeLocks.getHeldTime(i));
+			}
+			b.putLong("timersSet", timers.getSet());
+			b.putLong("timersCollapsed", timers.getCollapsed());
+			b.putBundle("musicStatusLatency",
+				MusicStatusFetcher.queryLatency.toBundle());
+			b.putLong("musicStatusBinds", MusicStatusFetcher.getBinds());
+			b.putLong("musicStatusReconnects",
+				MusicStatusFetcher.getReconnects());
+			b.putLong("musicStatusQueries", MusicStatusFetcher.getQueries());
+			b.putLong("musicStatusCoalesced", MusicStatusFetcher.getCoalesced());
+			return b;
+		}
+
 	};
 
 	@Override
@@ -594,70 +1021,26 @@ public class ScrobblerService extends Service {
 		return false;
 	}
 
-	private void newTrackStarted(Track t, long now) {
-		if (t != null) {
-			this.lastPlaying = new QueueEntry(t, now);
-			lastPlayingWasPaused = false;
-			lastResumedTime = now;
-			Log.v(LOG_TAG, "New track started.");
-		} else {
-			lastPlaying = null;
-			lastPlayingWasPaused = true;
-			Log.v(LOG_TAG, "New track with inadequate metadata started.");
-		}
-		lastPlayingTimePlayed = 0;
-		lastEventTime = now;
-	}
-
-	private boolean playedWholeTrack() {
-		// Put some wiggle room in to compensate for the imprecision of our
-		// timekeeping.
-		long diff = lastPlaying.getTrack().getMillis() -
-			lastPlayingTimePlayed;
-		if (diff < 30000) {
-			Log.d(LOG_TAG, "Whole track timing error: " + diff);
-		}
-		return diff < 3000;
-	}
-
-	private boolean playTimeEnoughForScrobble() {
-		final long playTime = lastPlayingTimePlayed;
-		// For debugging:
-		//if (true) { return playTime >= 5000; }
-		if (playTime < 30000) {
-			return false;
-		}
-		if (playTime >= 240000) {
-			return true;
-		}
-		Long length = lastPlaying.getTrack().getMillis();
-		if (length == null) {
-			length = 1000L;
-		}
-		return playTime >= (length / 2);
-	}
-
 	private void enqueue(QueueEntry entry) {
+		if (enqueuedWhileLoading != null) {
+			// This will be stored when the queue has been loaded.
+			enqueuedWhileLoading.add(entry);
+			enqueuedWhileLoadingCount = enqueuedWhileLoading.size();
+			return;
+		}
 		// There is no hook in Android for running some code at device shutdown
 		// so we have to save the queue entries as they are enqueued. They are
-		// saved in individual files so that we don't have to rewrite a larger
-		// file continually. We delete these files when the corresponding entry
-		// is scrobbled.
+		// appended to a journal so that we don't have to rewrite a larger file
+		// continually. The journal is told when the corresponding entries are
+		// scrobbled.
 		try {
-			FileOutputStream fos = new FileOutputStream(new File(queueDir,
-				Long.toString(entry.getStartTime())));
-			ObjectOutputStream oos = new ObjectOutputStream(fos);
-			
-			oos.writeObject(entry.getTrack());
-			
-			oos.close();
-			fos.close();
+			store.append(entry);
 		} catch (IOException e) {
 			// No space left? Meh.
 		}
-		// Create the file first, because otherwise there would be a race where
-		// the scrobbling thread could remove the item from the queue, but not
-		// be able to find the file yet.
+		// Store the entry first, because otherwise there would be a race where
+		// the scrobbling thread could submit the entry before it has a
+		// sequence number, and so it would never be acknowledged.
 		queue.add(entry);
 	}
 
@@ -673,8 +1056,6 @@ public class ScrobblerService extends Service {
 			// That one is mandatory.
 			return;
 		}
-		long now = System.currentTimeMillis();
-		
 		if (intent.getBooleanExtra("playing", false)) {
 			lastPlayingFromMusicStatusFetcher = intent.getBooleanExtra(
 				MusicStatusFetcher.FROM_MUSIC_STATUS_FETCHER, false);
@@ -683,97 +1064,14 @@ public class ScrobblerService extends Service {
 			
 			Track t = null;
 			try {
-				t = new Track(intent, this);
+				t = new Track(intent, mediaStore);
 			} catch (InvalidMetadataException e) {
 			} catch (NoSuchElementException e) {}
 			
-			if (lastPlaying == null) {
-				newTrackStarted(t, now);
-			} else {
-				if (lastPlaying.getTrack().equals(t)) {
-					if (lastPlayingWasPaused) {
-						lastResumedTime = now;
-						lastEventTime = now;
-						lastPlayingWasPaused = false;
-						Log.v(LOG_TAG, "Previously paused track resumed.");
-					} else {
-						if (playedWholeTrack() && playTimeEnoughForScrobble()) {
-							enqueue(lastPlaying);
-							newTrackStarted(t, now);
-							Log.v(LOG_TAG, "Enqueued repeating track.");
-							updatedQueue();
-						} else {
-							// lastPlaying track is still playing, but hasn't
-							// gotten to the end yet (and so isn't repeating):
-							// NOOP.
-						}
-					}
-				} else {
-					if (!lastPlayingWasPaused) {
-						lastPlayingTimePlayed += now - lastResumedTime;
-					}
-					final String logState = lastPlayingWasPaused ?
-						"paused" : "playing";
-					if (playTimeEnoughForScrobble()) {
-						enqueue(lastPlaying);
-						Log.v(LOG_TAG,
-							"Enqueued previously " + logState + " track.");
-						updatedQueue();
-					} else {
-						Log.v(LOG_TAG, "Previously " + logState +
-							" track wasn't playing long enough to scrobble.");
-					}
-					newTrackStarted(t, now);
-				}
-			}
+			tracker.playing(t);
 		} else {
 			// Paused/stopped.
-			if (lastPlaying == null || lastPlayingWasPaused) {
-				// We weren't playing before and we aren't playing now: NOOP.
-			} else {
-				// A track was playing.
-				lastPlayingTimePlayed += now - lastResumedTime;
-				lastPlayingWasPaused = true;
-				lastEventTime = now;
-				Log.v(LOG_TAG, "Track paused/stopped. Total play time so far " +
-					"is " + lastPlayingTimePlayed + ".");
-				if (playedWholeTrack() && playTimeEnoughForScrobble()) {
-					enqueue(lastPlaying);
-					lastPlaying = null;
-					lastPlayingTimePlayed = 0;
-					Log.v(LOG_TAG, "Enqueued paused/stopped track.");
-					updatedQueue();
-				} else {
-					// If the whole track wasn't played then that's okay: the
-					// track will still be queued eventually by stopIfIdle()
-					// below if it has played for long enough.
-					//
-					// We queue completed tracks now to make the UI more
-					// intuitive. If a playlist ends then the last track will be
-					// queued immediately.
-					//
-					// If we wanted to we could queue any track that has played
-					// for long enough at this point. The reason we don't do
-					// that is to avoid enqueuing duplicates when a track wasn't
-					// really repeated. If we did enqueue partially played
-					// tracks now then the following situation could occur:
-					// 1) A track plays for 55% of it's play time.
-					// 2) User pauses. The track gets enqueued and
-					//    lastPlayingTimePlayed is reset to zero.
-					// 3) User rewinds it back 10% so it is at 45%. We don't get
-					//    informed about this type of event.
-					// 4) User resumes.
-					// 5) Track plays until the end. 55% of it has played so we
-					//    assume that it was repeated. It gets enqueued again.
-					// In fact the user had only listened to 110% of the track
-					// so they probably don't want to scrobble it twice.
-					//
-					// Unfortunately the situation described above can still
-					// occur if the user has the immediate scrobbling mode
-					// switched on, but there doesn't seem to be an obvious way
-					// of avoiding it in that case.
-				}
-			}
+			tracker.stopped();
 		}
 	}
 
@@ -781,96 +1079,149 @@ public class ScrobblerService extends Service {
 	public void onStart(Intent intent, int startId) {
 		super.onStart(intent, startId);
 		
-		wakeLock.acquire();
+		wakeLocks.acquire(WakeLocks.EVENT);
+		// If an alarm started us then AlarmReceiver has been keeping the
+		// device awake until now:
+		AlarmReceiver.release(intent);
+		try {
+			handleStart(intent);
+		} finally {
+			wakeLocks.release(WakeLocks.EVENT);
+		}
+	}
+
+	private void handleStart(Intent intent) {
 		String action = intent.getAction();
 		if (action != null &&
 			(action.equals(Intent.ACTION_TIME_CHANGED) ||
 			 action.equals(Intent.ACTION_TIMEZONE_CHANGED))) {
 			
-			if (lastScrobbleResult == BADTIME) {
-				lastScrobbleResult = NOT_YET_ATTEMPTED;
-				// lastEventTime is used to determine when we should scrobble
-				// and it may be very wrong if the time was wrong so reset it:
-				lastEventTime = System.currentTimeMillis();
+			boolean wasBadTime = false;
+			for (ScrobbleTask t : tasks) {
+				if (t.result == BADTIME) {
+					t.result = NOT_YET_ATTEMPTED;
+					wasBadTime = true;
+				}
+			}
+			if (wasBadTime) {
+				tracker.resetEventTime();
 				updateAllClients();
 			}
-		} else if (action != null && action.equals(ACTION_RETRY_HANDSHAKE)) {
-			Log.v(LOG_TAG, "Woken up by alarm to retry handshake.");
+		} else if (action != null &&
+			action.equals(ConnectivityReceiver.ACTION_CONNECTIVITY_CHANGED)) {
 			
-			try {
-				FileInputStream fis = openFileInput(WAITING_TIME_FILENAME);
-				ObjectInputStream ois = new ObjectInputStream(fis);
-				
-				handshakeRetryWaitingTime = ois.readInt();
-				
-				ois.close();
-				fis.close();
-				
-				deleteFile(WAITING_TIME_FILENAME);
-			} catch (IOException e) {}
+			// We were started because we're back online, so the scrobble
+			// that we were holding when we stopped will be done by
+			// stopIfIdle() below.
+			Log.v(LOG_TAG, "Started because we're back online.");
+			connectivity.update();
+		} else if (action != null &&
+			action.startsWith(ACTION_RETRY_HANDSHAKE)) {
 			
-			// This is important if the alarm is fired onto a service that is
-			// already running (probably because a client was attached when the
-			// alarm was set):
-			handshakeRetryAlarmSet = false;
+			for (ScrobbleTask t : tasks) {
+				if (action.equals(t.target.suffixed(ACTION_RETRY_HANDSHAKE))) {
+					t.retryAlarmFired();
+				}
+			}
+		} else if (action != null && (action.equals(ACTION_CHECK_IDLE) ||
+			action.equals(ACTION_POLL_MUSIC_STATUS) ||
+			action.equals(ACTION_ANNOUNCE_NOW_PLAYING))) {
+			
+			if (timers.fire(action)) {
+				return;
+			}
+			// The timer was set before we were last stopped, or it's been
+			// cancelled. Either way there's nothing to do except for the
+			// stopIfIdle() below.
 		} else {
-			handleIntent(intent);
+			final long now = SystemClock.uptimeMillis();
+			if (statusDebouncer.isDuplicate(intent, now) &&
+				tracker.repeatIsNoop(
+					intent.getBooleanExtra("playing", false))) {
+				
+				statusDebouncer.suppressed();
+				Log.v(LOG_TAG, "Ignored duplicate status.");
+			} else {
+				statusDebouncer.accepted(intent, now);
+				handleIntent(intent);
+			}
+			final long received = intent.getLongExtra(
+				StatusBroadcastReceiver.RECEIVED_TIME, -1);
+			if (received != -1) {
+				stats.decisionLatency.record(
+					SystemClock.uptimeMillis() - received);
+			}
 		}
 		stopIfIdle();
 	}
 
+	private final Runnable pollMusicStatus = new Runnable() {
+		@Override
+		public void run() {
+			if (tracker.isPlaying() && lastPlayingFromMusicStatusFetcher) {
+				startService(new Intent(
+					ScrobblerService.this, MusicStatusFetcher.class)
+					.putExtra(MusicStatusFetcher.BROADCAST_ACTION,
+						lastPlayingMusicStatusFetcherBroadcastAction));
+			}
+		}
+	};
+
+	private final Runnable announceNowPlaying = new Runnable() {
+		@Override
+		public void run() {
+			final QueueEntry entry = nowPlayingCandidate;
+			nowPlayingCandidate = null;
+			if (entry == null || entry != tracker.getLastPlaying() ||
+				!tracker.isPlaying()) {
+				
+				// It has already stopped, or been skipped.
+				return;
+			}
+			for (ScrobbleTask t : tasks) {
+				t.announce(entry);
+			}
+		}
+	};
+
 	private void stopIfIdle() {
-		if (!lastPlayingWasPaused) {
+		if (enqueuedWhileLoading != null) {
+			// The queue hasn't been loaded yet. This will be called again when
+			// it has.
+			return;
+		}
+		if (tracker.isPlaying()) {
 			if (lastPlayingFromMusicStatusFetcher) {
 				// The version of the Music app on the G1 doesn't send
 				// broadcasts when a track stops at the end of a playlist, so
 				// we poll every minute to see if it has in fact finished.
 				Log.v(LOG_TAG, "Scheduling a check for playing track.");
-				handler.postDelayed(new Runnable() {
-					@Override
-					public void run() {
-						startService(new Intent(
-							ScrobblerService.this, MusicStatusFetcher.class)
-							.putExtra(MusicStatusFetcher.BROADCAST_ACTION,
-								lastPlayingMusicStatusFetcherBroadcastAction));
-					}
-				}, 60000);
+				timers.set(ACTION_POLL_MUSIC_STATUS, 60000, pollMusicStatus);
 			}
 			return;
 		}
-		if (isScrobbling()) {
+		// There's nothing to poll for now:
+		timers.cancel(ACTION_POLL_MUSIC_STATUS);
+		if (isScrobbling() || isAnnouncing()) {
 			return;
 		}
 		
 		if (!prefs.getBoolean("immediate", false)) {
 			final long waitingTimeMillis =
 				SCROBBLE_WAITING_TIME_MINUTES * 60 * 1000;
-			if (System.currentTimeMillis() - lastEventTime <
-				waitingTimeMillis) {
-				
-				// Check again later, because the user might start playing music
-				// again soon.
-				handler.postDelayed(new Runnable() {
-					@Override
-					public void run() {
-						stopIfIdle();
-					}
-				}, waitingTimeMillis);
+			if (tracker.waitingForIdle(waitingTimeMillis, new Runnable() {
+				@Override
+				public void run() {
+					stopIfIdle();
+				}
+			})) {
 				return;
 			}
 		}
 		
 		// Check if the paused/stopped track should be scrobbled.
-		if (lastPlaying != null && playTimeEnoughForScrobble()) {
-			enqueue(lastPlaying);
-			lastPlaying = null;
-			lastPlayingTimePlayed = 0;
-			Log.v(LOG_TAG, "Enqueued previously paused/stopped track.");
-			updatedQueue();
-		}
-		if (queueSize() > 0 && !handshakeRetryAlarmSet &&
-			!lastScrobbleUserFailure() &&
-			!(prefs.getString("username", "").length() == 0)) {
+		tracker.enqueueIfIdle();
+		if (isAnyTaskReady() && !connectivity.hold()) {
 			
 			scrobbleNow();
 			return; // When the scrobble ends this method will be called again.
@@ -884,27 +1235,36 @@ public class ScrobblerService extends Service {
 		// it looks like we really are idle!
 		Log.v(LOG_TAG, "Shutting down idle service.");
 		
+		// If we're holding a scrobble then we need to be started again when
+		// we're back online:
+		ConnectivityReceiver.setEnabled(this, connectivity.isHolding());
+		// We're not waiting for anything else:
+		timers.cancelAll();
+		
+		final QueueEntry lastPlaying = tracker.getLastPlaying();
 		if (lastPlaying != null) {
 			try {
 				FileOutputStream fos = openFileOutput(LAST_PLAYING_FILENAME, 0);
-				ObjectOutputStream oos = new ObjectOutputStream(fos);
+				DataOutputStream dos = new DataOutputStream(fos);
 				
-				oos.writeObject(lastPlaying);
-				oos.writeLong(lastPlayingTimePlayed);
+				byte[] entry = TrackCodec.encodeEntry(lastPlaying);
+				dos.writeInt(entry.length);
+				dos.write(entry);
+				dos.writeLong(tracker.getTimePlayed());
 				
-				oos.close();
+				dos.close();
 				fos.close();
 			} catch (IOException e) {}
 		} else {
 			deleteFile(LAST_PLAYING_FILENAME);
 		}
-		if (lastScrobbleUserFailure()) {
+		if (primary.isUserFailure()) {
 			try {
 				FileOutputStream fos = openFileOutput(
 					LAST_SCROBBLE_RESULT_FILENAME, 0);
 				ObjectOutputStream oos = new ObjectOutputStream(fos);
 				
-				oos.writeInt(lastScrobbleResult);
+				oos.writeInt(primary.result);
 				
 				oos.close();
 				fos.close();
@@ -912,31 +1272,46 @@ public class ScrobblerService extends Service {
 		} else {
 			deleteFile(LAST_SCROBBLE_RESULT_FILENAME);
 		}
-		wakeLock.release();
 		stopSelf();
 	}
 
+	// Each target is considered separately, so that one which can't scrobble
+	// at the moment doesn't make us try on every enqueue once it has a full
+	// batch waiting.
 	private boolean shouldScrobbleNow() {
-		final int queueSize = queueSize();
-		if (queueSize == 0) {
-			return false;
-		}
-		if (prefs.getBoolean("immediate", false)) {
-			return true;
-		}
-		if (queueSize >= SCROBBLE_BATCH_SIZE) {
-			return true;
+		final boolean immediate = prefs.getBoolean("immediate", false);
+		for (ScrobbleTask t : tasks) {
+			final int pending = t.getPending();
+			if (pending == 0) {
+				continue;
+			}
+			if ((immediate || pending >= SCROBBLE_BATCH_SIZE) && t.isReady()) {
+				return true;
+			}
 		}
 		return false;
 	}
 
 	private void updatedQueue() {
+		for (ScrobbleTask t : tasks) {
+			t.trimIfStuck();
+		}
+		stats.queueDepth(queueSize());
 		if (shouldScrobbleNow()) {
 			scrobbleNow();
 		}
 		updateAllClients();
 	}
 
+	private boolean isAnyTaskReady() {
+		for (ScrobbleTask t : tasks) {
+			if (t.isReady()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
 	private static String toHexString(byte[] bytes) {
 		StringBuffer sb =
 			new StringBuffer(bytes.length * 2);
@@ -953,24 +1328,221 @@ public class ScrobblerService extends Service {
 		return sb.toString();
 	}
 
-	private class ScrobbleThread extends Thread {
-		final static String handshakeURL =
-			"http://post.audioscrobbler.com:80/";
+	// There is one of these for each target, and it only runs on its own
+	// scheduler's worker thread. The targets are independent of each other,
+	// so one that is down or rejecting us doesn't hold up the others.
+	private class ScrobbleTask implements Runnable {
 		final static String apiVersion = "1.2.1";
 		final static String encoding = "UTF-8";
 
 		final static String clientID = "tst";
 
-		private boolean inProgress = true;
-		private Session s = session;
-		private HttpClient client;
+		final ScrobbleTarget target;
+		// Scrobbling must be done chronologically, so it is not allowable for
+		// two scrobbles to the same target to run at once. To ensure this,
+		// scrobbles only run on the scheduler's worker thread, and only
+		// scrobbleNow() may request them.
+		final ScrobbleScheduler scheduler;
+		final ScrobbleQueue.Cursor cursor = queue.newCursor();
+		private final BatchSizer batchSizer = new BatchSizer(
+			MAX_SCROBBLE_TRACKS, BatchSizer.DEFAULT_SLOW_ROUND_TRIP);
+		volatile int result = NOT_YET_ATTEMPTED;
+
+		private final SharedPreferences sessionPrefs;
+		// This is the hex MD5 of the password, which is only recalculated when
+		// the password changes.
+		private volatile String passwordMD5;
+		// This musn't be reassigned unless the caller holds the handshaking
+		// lock as described below. It is acceptable to invalidate() the
+		// Session without holding the lock.
+		private volatile Session session;
+		// It would be bad if two threads were handshaking at the same time so
+		// anyone who wants to handshake must synchronize on the following
+		// object. After that lock is obtained, they must then check to see if
+		// the above Session isValid(). If so they should take their own copy
+		// of the reference to it, and then release the lock and attempt to
+		// use that Session. If it wasn't valid then they should handshake,
+		// store the new Session in the above variable and then release the
+		// lock.
+		private final Object handshaking = new Object();
+
+		// This is set when the target doesn't accept gzipped request bodies
+		// in the current session. It's kept with the session, and we try
+		// again when we get a new one, because that could be with a different
+		// server.
+		private volatile boolean gzipRejected;
+		// This is set when a gzipped request has been answered in the current
+		// session. After that, a BADSESSION really means that the session is
+		// bad, rather than that the server couldn't find the session ID in a
+		// body that it couldn't read.
+		private volatile boolean gzipAnswered;
+
+		private int hardFailures = 0;
+		private int handshakeRetryWaitingTime =
+			INITIAL_HANDSHAKE_RETRY_WAITING_TIME;
+		private volatile boolean handshakeRetryAlarmSet = false;
+
+		// This is the track that the scrobble thread should send a
+		// notification for next. If it's set again before the scrobble thread
+		// has got to it then only the newer one is sent.
+		private final AtomicReference<QueueEntry> nowPlaying =
+			new AtomicReference<QueueEntry>();
+		// This is the number of sendNowPlaying runs that have been handed to
+		// the scheduler and haven't finished yet.
+		private final AtomicInteger announcing = new AtomicInteger();
+
+		private Session s;
+
+		// This is reused for every batch that we submit. Batches are sent one
+		// at a time, because the server needs them in chronological order.
+		private final FormEncoder body = new FormEncoder();
+		// This is the last claim that has been put into a batch in this run.
+		private ScrobbleQueue.Claim batched = null;
+		private final FormEncoder nowPlayingBody = new FormEncoder();
+
+		ScrobbleTask(ScrobbleTarget target) {
+			this.target = target;
+			scheduler = new ScrobbleScheduler(this,
+				target.suffixed("ScrobbleThread"));
+			sessionPrefs = getSharedPreferences(
+				target.suffixed(SESSION_PREFS), 0);
+			updatePasswordMD5();
+			session = loadSession();
+			synchronized (sessionPrefs) {
+				gzipRejected = sessionPrefs.getBoolean("gzipRejected", false);
+			}
+		}
+
+		boolean isUserFailure() {
+			return result == BANNED || result == BADAUTH || result == BADTIME;
+		}
+
+		int getPending() {
+			return queue.getPending(cursor);
+		}
+
+		// Returns true if this task has something to scrobble, and nothing
+		// stopping it from doing so.
+		boolean isReady() {
+			return getPending() > 0 && !handshakeRetryAlarmSet &&
+				!isUserFailure() && target.isConfigured(prefs);
+		}
+
+		void putStats(Bundle b) {
+			b.putInt("currentBatchSizeLimit", batchSizer.getBatchSize());
+			b.putLong("batchSizeIncreases", batchSizer.getIncreases());
+			b.putLong("batchSizeDecreases", batchSizer.getDecreases());
+			b.putLong("scrobbleRequests", scheduler.getRequests());
+			b.putLong("coalescedScrobbleRequests",
+				scheduler.getCoalescedRequests());
+		}
+
+		// This is called when the username, password or URL has changed.
+		void identityChanged() {
+			updatePasswordMD5();
+			// Force a rehandshake on the next scrobble:
+			invalidateSession(session);
+		}
 
-		ScrobbleThread() {
-			this.setName("ScrobbleThread");
+		void retryAlarmFired() {
+			Log.v(LOG_TAG, "Woken up by alarm to retry handshake with " +
+				target.name + ".");
 			
-			HttpParams p = new BasicHttpParams();
-			HttpProtocolParams.setVersion(p, HttpVersion.HTTP_1_1);
-			client = new DefaultHttpClient(p);
+			final String waitingTime = target.suffixed(WAITING_TIME_FILENAME);
+			try {
+				FileInputStream fis = openFileInput(waitingTime);
+				ObjectInputStream ois = new ObjectInputStream(fis);
+				
+				handshakeRetryWaitingTime = ois.readInt();
+				
+				ois.close();
+				fis.close();
+				
+				deleteFile(waitingTime);
+			} catch (IOException e) {}
+			
+			// This is important if the alarm is fired onto a service that is
+			// already running (probably because a client was attached when
+			// the alarm was set):
+			handshakeRetryAlarmSet = false;
+			scheduler.backoffExpired();
+		}
+
+		private void updatePasswordMD5() {
+			try {
+				passwordMD5 = toHexString(MessageDigest.getInstance("MD5")
+					.digest(target.getPassword(prefs).getBytes(encoding)));
+			} catch (NoSuchAlgorithmException e) {
+				assert false;
+			} catch (UnsupportedEncodingException e) {
+				assert false;
+			}
+		}
+
+		// This returns an invalid Session if we don't have one for the
+		// current user.
+		private Session loadSession() {
+			synchronized (sessionPrefs) {
+				final String id = sessionPrefs.getString("id", null);
+				if (id != null && target.getUsername(prefs).equals(
+					sessionPrefs.getString("username", null))) {
+					
+					Session s = new Session(id,
+						sessionPrefs.getString("nowPlayingURL", ""),
+						sessionPrefs.getString("submissionURL", ""),
+						sessionPrefs.getLong("issuedTime", 0));
+					Log.v(LOG_TAG, "Reusing session with " + target.name +
+						" from " + ((System.currentTimeMillis() -
+						s.getIssuedTime()) / 1000) + "s ago.");
+					return s;
+				}
+			}
+			Session s = new Session("", "", "", 0);
+			s.invalidate();
+			return s;
+		}
+
+		private void saveSession(Session s) {
+			synchronized (sessionPrefs) {
+				sessionPrefs.edit()
+					.putString("id", s.getId())
+					.putString("nowPlayingURL", s.getNowPlayingURL())
+					.putString("submissionURL", s.getSubmissionURL())
+					.putLong("issuedTime", s.getIssuedTime())
+					.putString("username", target.getUsername(prefs))
+					// A new session might be with a different server, so we
+					// try gzip again:
+					.putBoolean("gzipRejected", false)
+					.commit();
+			}
+		}
+
+		// This can be called from any thread.
+		private void invalidateSession(Session s) {
+			s.invalidate();
+			synchronized (sessionPrefs) {
+				// Don't forget a newer session than this one:
+				if (s.getId().equals(sessionPrefs.getString("id", null))) {
+					sessionPrefs.edit().clear().commit();
+				}
+			}
+		}
+
+		private class Batch {
+			Batch(ScrobbleQueue.Claim claim, FormEncoder body,
+				int submitted) {
+				
+				this.claim = claim;
+				this.body = body;
+				this.submitted = submitted;
+			}
+
+			// This includes any unreadable entries, which are acknowledged
+			// along with the rest of the batch so that we don't load them
+			// again, but not submitted:
+			final ScrobbleQueue.Claim claim;
+			final FormEncoder body;
+			final int submitted;
 		}
 
 		private class HardFailure extends IOException {
@@ -1016,21 +1588,17 @@ public class ScrobblerService extends Service {
 					String timestamp = Long.toString(
 						System.currentTimeMillis() / 1000);
 					MessageDigest md5 = MessageDigest.getInstance("MD5");
-					byte[] passwordMD5 = md5.digest(
-						prefs.getString("password", "").getBytes(encoding));
-					md5.reset();
 					String token = toHexString(md5.digest(
-						(toHexString(passwordMD5) + timestamp).getBytes(
-							encoding)));
+						(passwordMD5 + timestamp).getBytes(encoding)));
 					u = new URI(
-						handshakeURL + '?' +
+						target.getHandshakeURL(prefs) + '?' +
 						"hs=true&" +
 						"p=" + enc(apiVersion) + '&' +
 						"c=" + enc(clientID) + '&' +
 						// The "tst" clientID has to use version "1.0":
 						"v=" + enc(clientID.equals("tst") ? "1.0" :
 							appVersionName) + '&' +
-						"u=" + enc(prefs.getString("username", "")) + '&' +
+						"u=" + enc(target.getUsername(prefs)) + '&' +
 						"t=" + enc(timestamp) + '&' +
 						"a=" + enc(token));
 				} catch (NoSuchAlgorithmException e) {
@@ -1041,100 +1609,114 @@ public class ScrobblerService extends Service {
 					assert false;
 				}
 				
-				HttpResponse r = client.execute(new HttpGet(u));
-				if (r.getStatusLine().getStatusCode() != 200) {
-					throw new HardFailure();
-				}
+				final long start = SystemClock.uptimeMillis();
+				HttpResponse r = transport.execute(new HttpGet(u));
 				HttpEntity e = r.getEntity();
-				String resp;
+				final String status;
+				final String id;
+				final String nowPlayingURL;
+				final String submissionURL;
 				try {
-					resp = EntityUtils.toString(e, "US-ASCII");
+					if (r.getStatusLine().getStatusCode() != 200 ||
+						e == null) {
+						
+						throw new HardFailure();
+					}
+					final ResponseLines lines = new ResponseLines(e);
+					status = lines.next();
+					id = lines.next();
+					nowPlayingURL = lines.next();
+					submissionURL = lines.next();
 				} finally {
-					e.consumeContent();
+					// Release the connection:
+					if (e != null) {
+						e.consumeContent();
+					}
 				}
-				String[] lines = resp.split("\n");
-				if (lines.length < 1) {
+				stats.handshakeTime.record(SystemClock.uptimeMillis() - start);
+				if (status == null) {
 					throw new HardFailure();
 				}
-				if (lines[0].equals("OK")) {
+				if (status.equals("OK")) {
 					// Phew.
-				} else if (lines[0].equals("BANNED")) {
+				} else if (status.equals("BANNED")) {
 					throw new UserFailure(BANNED);
-				} else if (lines[0].equals("BADAUTH")) {
+				} else if (status.equals("BADAUTH")) {
 					throw new UserFailure(BADAUTH);
-				} else if (lines[0].equals("BADTIME")) {
+				} else if (status.equals("BADTIME")) {
 					throw new UserFailure(BADTIME);
-				} else if (lines[0].startsWith("FAILED")) {
+				} else if (status.startsWith("FAILED")) {
 					throw new HardFailure();
 				} else {
 					throw new HardFailure();
 				}
-				if (lines.length < 4) {
+				if (submissionURL == null) {
 					throw new HardFailure();
 				}
-				s = session = new Session(lines[1], lines[3]);
+				s = session = new Session(id, nowPlayingURL, submissionURL,
+					System.currentTimeMillis());
+				gzipRejected = false;
+				gzipAnswered = false;
+				saveSession(s);
 				
 				hardFailures = 0;
 				handshakeRetryWaitingTime =
 					INITIAL_HANDSHAKE_RETRY_WAITING_TIME;
-				deleteFile(WAITING_TIME_FILENAME);
+				deleteFile(target.suffixed(WAITING_TIME_FILENAME));
 				
-				Log.v(LOG_TAG, "New session started.");
-			}
-		}
-
-		private void submit() throws IOException {
-			StringBuffer sb = new StringBuffer("s=" + s.getId());
-			int submissionSize = submission.size();
-			for (int i = 0; i < submissionSize; ++i) {
-				QueueEntry e = submission.get(i);
-				Track t = e.getTrack();
-				Long secs = t.getSecs();
-				String album = t.getAlbum();
-				Integer tracknumber = t.getTracknumber();
-				String mbtrackid = t.getMbtrackid();
-				sb.append('&' +
-					"a[" + i + "]=" + enc(t.getArtist()) + '&' +
-					"t[" + i + "]=" + enc(t.getTrack()) + '&' +
-					"i[" + i + "]=" + enc(
-						Long.toString(e.getStartTime() / 1000)) + '&' +
-					"o[" + i + "]=" + enc(
-						Character.toString(t.getSource())) + '&' +
-					"r[" + i + "]=" + '&' +
-					"l[" + i + "]=" + enc(
-						secs == null ? "" : secs.toString()) + '&' +
-					"b[" + i + "]=" + enc(
-						album == null ? "" : album) + '&' +
-					"n[" + i + "]=" + enc(
-						tracknumber == null ?
-							"" : tracknumber.toString()) + '&' +
-					"m[" + i + "]=" + enc(
-						mbtrackid == null ? "" : mbtrackid));
-			}
-			String batchSubmission = sb.toString();
+				Log.v(LOG_TAG, "New session started with " + target.name + ".");
+			}
+		}
+
+		// This takes the next entries from those in flight, or from the
+		// pending ones if they have run out, and encodes them. It returns null
+		// if there is nothing left to submit.
+		private Batch prepareBatch() {
+			final int size = batchSizer.getBatchSize();
+			stats.batchSizeLimit.record(size);
+			final ScrobbleQueue.Claim claim = queue.next(cursor, batched, size);
+			if (claim == null) {
+				return null;
+			}
+			batched = claim;
+			
+			final FormEncoder f = body;
+			RequestBodies.startSubmission(f, s.getId());
+			int i = 0;
+			for (QueueEntry e : claim.entries) {
+				try {
+					e.loadTrack();
+				} catch (IOException ex) {
+					// It was stored intact, so it will never be readable.
+					Log.w(LOG_TAG, "Dropping unreadable track.");
+					continue;
+				}
+				RequestBodies.appendSubmission(f, i, e);
+				++i;
+			}
+			return new Batch(claim, f, i);
+		}
+
+		private void submit(Batch batch) throws IOException {
+			if (batch.submitted == 0) {
+				acknowledge(batch);
+				return;
+			}
 			
 			try {
-				StringEntity ent =
-					new StringEntity(batchSubmission, "US-ASCII");
-				ent.setContentType("application/x-www-form-urlencoded");
-				HttpPost post = new HttpPost(s.getSubmissionURL());
-				post.setEntity(ent);
-				
-				HttpResponse r = client.execute(post);
-				if (r.getStatusLine().getStatusCode() != 200) {
+				final long start = SystemClock.uptimeMillis();
+				final String resp = post(s.getSubmissionURL(), batch.body);
+				if (resp == null) {
 					throw new HardFailure();
 				}
-				HttpEntity e = r.getEntity();
-				String resp;
-				try {
-					resp = EntityUtils.toString(e, "US-ASCII");
-				} finally {
-					e.consumeContent();
-				}
+				final long roundTrip = SystemClock.uptimeMillis() - start;
+				stats.submitTime.record(roundTrip);
 				if (resp.startsWith("OK")) {
 					// Yayzors!
+					batchSizer.succeeded(batch.submitted, batch.body.size(),
+						roundTrip);
 				} else if (resp.startsWith("BADSESSION")) {
-					s.invalidate();
+					invalidateSession(s);
 					throw new HardFailure();
 				} else if (resp.startsWith("FAILED")) {
 					throw new HardFailure();
@@ -1145,27 +1727,261 @@ public class ScrobblerService extends Service {
 				assert false;
 			}
 			
-			// There is a race here, because the device could be switched off
-			// right now, after the tracks have already been submitted, but
-			// before we delete the queue entries from the filesystem. That
-			// would cause them to be resubmitted when we load the queue next
-			// time we start up. That's fine, because the duplicates will be
-			// silently ignored by the server when submitted again.
-			for (QueueEntry entry : submission) {
-				new File(
-					queueDir, Long.toString(entry.getStartTime())).delete();
+			// The device could still be switched off right now, after the
+			// tracks have been accepted but before we've recorded that. Then
+			// they would be resubmitted when we start up again, and the server
+			// would have to ignore the duplicates. acknowledge() keeps that
+			// window as short as it can.
+			acknowledge(batch);
+			
+			stats.batchSize.record(batch.submitted);
+			final long now = System.currentTimeMillis();
+			for (QueueEntry entry : batch.claim.entries) {
+				final Track t = entry.getTrack();
+				if (t != null && t.getMillis() != null) {
+					stats.endToEndLatency.record(
+						now - (entry.getStartTime() + t.getMillis()));
+				}
 			}
+			Log.v(LOG_TAG, "Submitted " + batch.submitted + " track(s) to " +
+				target.name + ".");
+		}
+
+		private void acknowledge(Batch batch) {
+			final List<QueueEntry> reclaimed =
+				queue.acknowledge(cursor, batch.claim);
+			acknowledged(batch.claim.entries, reclaimed);
+		}
+
+		// Only the entries that every target has now acknowledged go in the
+		// index, because the others still have to be loaded again for the
+		// targets that haven't. The index is checkpointed first, because it's
+		// a single atomic write, and it's enough on its own for those entries
+		// to be skipped when we next load the queue.
+		private void acknowledged(List<QueueEntry> entries,
+			List<QueueEntry> reclaimed) {
 			
-			Log.v(LOG_TAG, "Submitted " + submissionSize + " track(s).");
-			submission.clear();
+			if (!reclaimed.isEmpty()) {
+				try {
+					acked.acknowledge(reclaimed);
+				} catch (IOException e) {
+					Log.w(LOG_TAG, "Couldn't checkpoint acknowledged tracks.");
+				}
+			}
+			try {
+				store.acknowledge(target.name, entries);
+				store.compact();
+			} catch (IOException e) {
+				Log.w(LOG_TAG, "Couldn't acknowledge submitted tracks.");
+			}
+		}
+
+		private boolean isStuck() {
+			return !target.isPrimary() &&
+				(isUserFailure() || !target.isConfigured(prefs));
+		}
+
+		// This is called on the main thread. The cursor is trimmed on the
+		// scrobble thread, between scrobbles, because that's the only thread
+		// that moves it.
+		void trimIfStuck() {
+			if (!isStuck() || getPending() <= MAX_STUCK_BACKLOG ||
+				!trimming.compareAndSet(false, true)) {
+				
+				return;
+			}
+			// This is released by finished():
+			wakeLocks.acquire(WakeLocks.SCROBBLING);
+			if (!scheduler.execute(trim)) {
+				trimming.set(false);
+				wakeLocks.release(WakeLocks.SCROBBLING);
+			}
+		}
+
+		private final AtomicBoolean trimming = new AtomicBoolean();
+
+		private final Runnable trim = new Runnable() {
+			@Override
+			public void run() {
+				try {
+					// The user might have fixed it in the meantime:
+					if (isStuck()) {
+						final List<QueueEntry> dropped =
+							queue.trim(cursor, MAX_STUCK_BACKLOG);
+						if (!dropped.isEmpty()) {
+							Log.w(LOG_TAG, "Dropped " + dropped.size() +
+								" track(s) that " + target.name +
+								" can't accept.");
+							acknowledged(dropped, queue.reclaim());
+						}
+					}
+				} finally {
+					trimming.set(false);
+					finished(new Runnable() {
+						@Override
+						public void run() {
+							updateAllClients();
+						}
+					});
+				}
+			}
+		};
+
+		// This sends the body, and returns the first line of the response, or
+		// null if the response wasn't 200 OK. If the body was gzipped and the
+		// server couldn't decode it then it's sent again uncompressed, and we
+		// don't gzip anything else for the rest of the session. A server that
+		// doesn't understand gzip either refuses the body outright, or can't
+		// find the session ID in it and says BADSESSION. Any other answer is
+		// returned as it is, because sending the whole body again wouldn't
+		// help.
+		private String post(String url, FormEncoder body) throws IOException {
+			boolean gzip = body.size() >= GZIP_MIN_SIZE && !gzipRejected &&
+				target.isGzipEnabled(prefs);
+			while (true) {
+				final AbstractHttpEntity entity =
+					gzip ? body.toGzipEntity() : body.toEntity();
+				HttpPost post = new HttpPost(url);
+				post.setEntity(entity);
+				
+				stats.sent(entity.getContentLength());
+				if (gzip) {
+					stats.compressed(body.size() - entity.getContentLength());
+				}
+				HttpResponse r = transport.execute(post);
+				HttpEntity e = r.getEntity();
+				final int code = r.getStatusLine().getStatusCode();
+				String status = null;
+				try {
+					if (code == 200 && e != null) {
+						status = new ResponseLines(e).next();
+					}
+				} finally {
+					// Release the connection:
+					if (e != null) {
+						e.consumeContent();
+					}
+				}
+				if (gzip && (code == 400 || code == 415 ||
+					(!gzipAnswered && status != null &&
+						status.startsWith("BADSESSION")))) {
+					
+					Log.v(LOG_TAG, target.name +
+						" didn't accept a gzipped request.");
+					stats.compressionRejected();
+					rejectGzip();
+					gzip = false;
+					continue;
+				}
+				if (gzip && status != null) {
+					gzipAnswered = true;
+				}
+				return status;
+			}
+		}
+
+		private void rejectGzip() {
+			gzipRejected = true;
+			synchronized (sessionPrefs) {
+				sessionPrefs.edit().putBoolean("gzipRejected", true).commit();
+			}
+		}
+
+		// This is called on the main thread, and the notification is sent on
+		// the scrobble thread.
+		void announce(QueueEntry entry) {
+			if (nowPlaying.getAndSet(entry) != null) {
+				// The scrobble thread hadn't got round to the last one yet,
+				// and now it will send this one instead.
+				return;
+			}
+			wakeLocks.acquire(WakeLocks.NOW_PLAYING);
+			announcing.incrementAndGet();
+			if (!scheduler.execute(sendNowPlaying)) {
+				announcing.decrementAndGet();
+				nowPlaying.set(null);
+				wakeLocks.release(WakeLocks.NOW_PLAYING);
+			}
+		}
+
+		boolean isAnnouncing() {
+			return announcing.get() > 0;
+		}
+
+		private final Runnable sendNowPlaying = new Runnable() {
+			@Override
+			public void run() {
+				try {
+					final QueueEntry entry = nowPlaying.getAndSet(null);
+					if (entry != null) {
+						sendNowPlaying(entry);
+					}
+				} finally {
+					announcing.decrementAndGet();
+					// The WakeLock is held until stopIfIdle() has had a chance
+					// to stop us, because it might have been waiting for this.
+					if (!handler.post(nowPlayingFinished)) {
+						wakeLocks.release(WakeLocks.NOW_PLAYING);
+					}
+				}
+			}
+		};
+
+		private final Runnable nowPlayingFinished = new Runnable() {
+			@Override
+			public void run() {
+				try {
+					stopIfIdle();
+				} finally {
+					wakeLocks.release(WakeLocks.NOW_PLAYING);
+				}
+			}
+		};
+
+		// This sends a now playing notification using the current session, if
+		// there is one. It's not worth handshaking for, or retrying, because
+		// it will be out of date soon anyway.
+		private void sendNowPlaying(QueueEntry entry) {
+			final Session current = session;
+			if (!current.isValid() || isUserFailure() ||
+				!connectivity.isOnline()) {
+				
+				return;
+			}
+			final FormEncoder f = nowPlayingBody;
+			RequestBodies.nowPlaying(f, current.getId(), entry.getTrack());
+			
+			try {
+				final long start = SystemClock.uptimeMillis();
+				String resp = post(current.getNowPlayingURL(), f);
+				if (resp == null) {
+					resp = "";
+				}
+				stats.nowPlayingTime.record(SystemClock.uptimeMillis() - start);
+				if (resp.startsWith("OK")) {
+					stats.nowPlayingSent();
+					Log.v(LOG_TAG, "Sent now playing notification.");
+				} else if (resp.startsWith("BADSESSION")) {
+					invalidateSession(current);
+				} else {
+					Log.v(LOG_TAG, "Now playing notification failed.");
+				}
+			} catch (IOException e) {
+				Log.v(LOG_TAG, "Couldn't send now playing notification.");
+			}
 		}
 
 		@Override
 		public void run() {
 			Log.v(LOG_TAG, "Scrobbling process started.");
-			if (prefs.getString("username", "").length() == 0) {
-				Log.v(LOG_TAG, "Cannot scrobble because there is no username.");
-			} else if (lastScrobbleUserFailure()) {
+			s = session;
+			// Anything left in flight from a failed scrobble will be batched
+			// again:
+			batched = null;
+			if (!target.isConfigured(prefs)) {
+				Log.v(LOG_TAG, "Cannot scrobble to " + target.name +
+					" because there is no username.");
+			} else if (isUserFailure()) {
 				Log.v(LOG_TAG,
 					"Refusing to scrobble because of an uncorrected error.");
 			} else {
@@ -1173,36 +1989,43 @@ public class ScrobblerService extends Service {
 				try {
 					handshake();
 					handshakeOK = true;
+					scheduler.submitting();
 					
-					while (queueSize() > 0) {
-						updateAllClients(); // Update the number of tracks left.
-						
-						QueueEntry entry;
-						while (submission.size() < MAX_SCROBBLE_TRACKS &&
-							((entry = queue.poll()) != null)) {
-							
-							submission.add(entry);
-						}
+					Batch batch = prepareBatch();
+					while (batch != null && !scheduler.isCancelled()) {
+						// Update the number of tracks left:
+						updateAllClients();
 						
-						submit();
+						submit(batch);
+						batch = prepareBatch();
 					}
 					
-					lastScrobbleResult = OK;
+					if (batch == null) {
+						result = OK;
+					} else {
+						Log.v(LOG_TAG, "Scrobbling cancelled.");
+					}
 				} catch (IOException e) {
+					// Either way, we'll try again later:
+					stats.retried();
+					// This might have failed because we've gone offline:
+					final boolean online = connectivity.update();
 					if (handshakeOK) {
+						// The submission failed, so we'll try smaller ones:
+						batchSizer.failed();
 						++hardFailures;
 						Log.v(LOG_TAG,
 							hardFailures + " hard failure(s) so far.");
 						if (hardFailures > 2) {
-							session.invalidate();
+							invalidateSession(session);
 						}
 					}
-					inProgress = false;
-					lastScrobbleResult = e instanceof HardFailure ?
+					result = e instanceof HardFailure ?
 						FAILED_OTHER : FAILED_NET;
 					if (handshakeOK) {
+						scheduler.finish(ScrobbleScheduler.IDLE);
 						updateAllClients();
-						handler.post(new Runnable() {
+						finished(new Runnable() {
 							@Override
 							public void run() {
 								scrobbleNow();
@@ -1210,7 +2033,11 @@ public class ScrobblerService extends Service {
 						});
 						return;
 					} else {
-						if (handshakeRetryAlarmSet) {
+						if (!online && connectivity.hold()) {
+							// There's no point in waking up to retry while
+							// we're offline. We'll be told when we're back.
+							Log.v(LOG_TAG, "Handshake failed while offline.");
+						} else if (handshakeRetryAlarmSet) {
 							Log.v(LOG_TAG,
 								"Alarm to retry handshake was already set.");
 						} else {
@@ -1223,10 +2050,6 @@ public class ScrobblerService extends Service {
 							Log.v(LOG_TAG, "Setting alarm to retry handshake " +
 								"in " + (current / 60 / 1000) + " minute(s).");
 							
-							Intent i = new Intent(
-								ScrobblerService.this, ScrobblerService.class);
-							i.setAction(ACTION_RETRY_HANDSHAKE);
-							
 							// It would be lovely to shove this into the Intent,
 							// but there seems to be a bug which stops that from
 							// working. The Intent that is received when the
@@ -1234,7 +2057,8 @@ public class ScrobblerService extends Service {
 							// was provided to the first alarm that was set.
 							try {
 								FileOutputStream fos =
-									openFileOutput(WAITING_TIME_FILENAME, 0);
+									openFileOutput(target.suffixed(
+										WAITING_TIME_FILENAME), 0);
 								ObjectOutputStream oos =
 									new ObjectOutputStream(fos);
 								
@@ -1247,14 +2071,18 @@ public class ScrobblerService extends Service {
 							((AlarmManager) getSystemService(ALARM_SERVICE))
 								.set(AlarmManager.ELAPSED_REALTIME_WAKEUP,
 									SystemClock.elapsedRealtime() + current,
-									PendingIntent.getService(
-										ScrobblerService.this, 0, i, 0));
+									AlarmReceiver.getAlarmIntent(
+										ScrobblerService.this,
+										target.suffixed(
+											ACTION_RETRY_HANDSHAKE)));
 							handshakeRetryAlarmSet = true;
 						}
 					}
 				} catch (UserFailure e) {
-					lastScrobbleResult = e.getReason();
-					if (!bound) {
+					result = e.getReason();
+					// The settings screen only shows the primary target's
+					// result, so that's the only one worth notifying about:
+					if (!bound && target.isPrimary()) {
 						int textID =
 							e.reason == BANNED ? R.string.scrobbling_banned :
 							e.reason == BADAUTH ? R.string.scrobbling_badauth :
@@ -1278,9 +2106,13 @@ public class ScrobblerService extends Service {
 				}
 			}
 			
-			inProgress = false;
+			// This has to happen before we update the clients so that they see
+			// that we've finished, even though the worker thread is still
+			// running this:
+			scheduler.finish(handshakeRetryAlarmSet ?
+				ScrobbleScheduler.BACKOFF : ScrobbleScheduler.IDLE);
 			updateAllClients();
-			handler.post(new Runnable() {
+			finished(new Runnable() {
 				@Override
 				public void run() {
 					stopIfIdle();
@@ -1288,20 +2120,52 @@ public class ScrobblerService extends Service {
 			});
 		}
 
-		public boolean inProgress() {
-			// You might think that we could just use Thread.isAlive() instead
-			// of having this method. We use this method so that when we are
-			// finished we can call updateAllClients() from this thread and have
-			// it report that we have finished scrobbling even though the thread
-			// hasn't actually terminated yet.
-			return inProgress;
+		// The WakeLock that scrobbleNow() acquired is held until then has run
+		// on the main thread, so that the device can't sleep before we've
+		// decided what to do next.
+		private void finished(final Runnable then) {
+			final boolean posted = handler.post(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						then.run();
+					} finally {
+						wakeLocks.release(WakeLocks.SCROBBLING);
+					}
+				}
+			});
+			if (!posted) {
+				wakeLocks.release(WakeLocks.SCROBBLING);
+			}
 		}
 	}
 
-	synchronized private void scrobbleNow() {
-		if (!isScrobbling()) {
-			scrobbleThread = new ScrobbleThread();
-			scrobbleThread.start();
+	private void scrobbleNow() {
+		if (enqueuedWhileLoading != null) {
+			// We'll scrobble when the queue has been loaded if necessary.
+			return;
+		}
+		if (connectivity.hold()) {
+			Log.v(LOG_TAG, "Holding the scrobble until we're online.");
+			return;
+		}
+		boolean requested = false;
+		for (ScrobbleTask t : tasks) {
+			if (!t.isReady()) {
+				// This target is up to date, or it's waiting for its retry
+				// alarm, or for the user to fix something. Scrobbling to the
+				// others mustn't wake it up.
+				continue;
+			}
+			// This is released when the scrobble has finished:
+			wakeLocks.acquire(WakeLocks.SCROBBLING);
+			if (t.scheduler.request()) {
+				requested = true;
+			} else {
+				wakeLocks.release(WakeLocks.SCROBBLING);
+			}
+		}
+		if (requested) {
 			updateAllClients();
 		}
 	}
@@ -0,0 +1,94 @@
+package net.jjc1138.android.scrobbler;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.os.Bundle;
+
+/**
+ * Counters and histograms describing how the service has behaved since it
+ * was created. Everything can be recorded from any thread without allocating.
+ * All times are in milliseconds.
+ */
+final class ScrobblerStats {
+	// From StatusBroadcastReceiver getting a status to the service having
+	// handled (or ignored) it:
+	final Histogram decisionLatency = new Histogram();
+	// MediaStore queries (cache hits aren't included):
+	final Histogram mediaStoreLookupTime = new Histogram();
+	final Histogram handshakeTime = new Histogram();
+	final Histogram submitTime = new Histogram();
+	// The number of tracks in each successful submission:
+	final Histogram batchSize = new Histogram();
+	// The most tracks that BatchSizer allowed in each submission:
+	final Histogram batchSizeLimit = new Histogram();
+	// From the end of a track (as far as we know) to the server accepting it:
+	final Histogram endToEndLatency = new Histogram();
+	final Histogram wakeLockHeldTime = new Histogram();
+	final Histogram nowPlayingTime = new Histogram();
+
+	private final AtomicLong queueHighWaterMark = new AtomicLong();
+	private final AtomicLong bytesSent = new AtomicLong();
+	private final AtomicLong retries = new AtomicLong();
+	// Every track that started, and the now playing notifications that were
+	// actually sent for them:
+	private final AtomicLong nowPlayingRequests = new AtomicLong();
+	private final AtomicLong nowPlayingSent = new AtomicLong();
+	// What gzipping request bodies has saved us, and the number of times that
+	// a server didn't accept a gzipped body:
+	private final AtomicLong bytesSavedByCompression = new AtomicLong();
+	private final AtomicLong compressionRejections = new AtomicLong();
+
+	void queueDepth(int depth) {
+		long m;
+		while ((m = queueHighWaterMark.get()) < depth) {
+			if (queueHighWaterMark.compareAndSet(m, depth)) {
+				break;
+			}
+		}
+	}
+
+	void sent(long bytes) {
+		bytesSent.addAndGet(bytes);
+	}
+
+	void compressed(long saved) {
+		bytesSavedByCompression.addAndGet(saved);
+	}
+
+	void compressionRejected() {
+		compressionRejections.incrementAndGet();
+	}
+
+	void retried() {
+		retries.incrementAndGet();
+	}
+
+	void nowPlayingRequested() {
+		nowPlayingRequests.incrementAndGet();
+	}
+
+	void nowPlayingSent() {
+		nowPlayingSent.incrementAndGet();
+	}
+
+	Bundle toBundle() {
+		final Bundle b = new Bundle();
+		b.putBundle("decisionLatency", decisionLatency.toBundle());
+		b.putBundle("mediaStoreLookupTime", mediaStoreLookupTime.toBundle());
+		b.putBundle("handshakeTime", handshakeTime.toBundle());
+		b.putBundle("submitTime", submitTime.toBundle());
+		b.putBundle("batchSize", batchSize.toBundle());
+		b.putBundle("batchSizeLimit", batchSizeLimit.toBundle());
+		b.putBundle("endToEndLatency", endToEndLatency.toBundle());
+		b.putBundle("wakeLockHeldTime", wakeLockHeldTime.toBundle());
+		b.putBundle("nowPlayingTime", nowPlayingTime.toBundle());
+		b.putLong("queueHighWaterMark", queueHighWaterMark.get());
+		b.putLong("bytesSent", bytesSent.get());
+		b.putLong("bytesSavedByCompression", bytesSavedByCompression.get());
+		b.putLong("compressionRejections", compressionRejections.get());
+		b.putLong("retries", retries.get());
+		b.putLong("nowPlayingRequests", nowPlayingRequests.get());
+		b.putLong("nowPlayingSent", nowPlayingSent.get());
+		return b;
+	}
+}
@@ -3,15 +3,21 @@ package net.jjc1138.android.scrobbler;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.os.SystemClock;
 
 public class StatusBroadcastReceiver extends BroadcastReceiver {
 	public static final String ACTION_MUSIC_STATUS =
 		"net.jjc1138.android.scrobbler.action.MUSIC_STATUS";
+	// This is the uptime when we received the status, so that the service
+	// can tell how long it took to handle it.
+	static final String RECEIVED_TIME =
+		"net.jjc1138.android.scrobbler.received_time";
 
 	@Override
 	public void onReceive(Context context, Intent in) {
 		Intent out = new Intent(context, ScrobblerService.class);
 		out.putExtras(in);
+		out.putExtra(RECEIVED_TIME, SystemClock.uptimeMillis());
 		context.startService(out);
 	}
 
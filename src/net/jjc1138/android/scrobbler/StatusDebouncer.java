@@ -0,0 +1,99 @@
+package net.jjc1138.android.scrobbler;
+
+import android.content.Intent;
+
+/**
+ * Music players tend to send their status in bursts (e.g. metachanged followed
+ * by playstatechanged, both of which we then get via StatusBroadcastReceiver,
+ * and sometimes via MusicStatusFetcher as well). This recognizes a status
+ * that is identical to the last one that we handled within a short window, so
+ * that the service can ignore it instead of running it through handleIntent().
+ *
+ * Two statuses are identical if every extra that the service looks at is the
+ * same. This is only used on the service's main thread.
+ */
+final class StatusDebouncer {
+	static final long DEFAULT_WINDOW = 2000;
+
+	private final long window;
+
+	private boolean hasLast = false;
+	private long lastTime;
+	private boolean playing;
+	private long id;
+	private String source;
+	private String artist;
+	private String track;
+	private String album;
+	private int secs;
+	private int tracknumber;
+	private String mbtrackid;
+	private boolean fromMusicStatusFetcher;
+	private String broadcastAction;
+
+	private long accepted = 0;
+	private long suppressed = 0;
+
+	StatusDebouncer(long window) {
+		this.window = window;
+	}
+
+	private static boolean same(String a, String b) {
+		return a == null ? b == null : a.equals(b);
+	}
+
+	/**
+	 * Returns true if i is identical to the last status that was accepted(),
+	 * and that was less than the window before now.
+	 */
+	boolean isDuplicate(Intent i, long now) {
+		return hasLast && now - lastTime < window &&
+			i.getBooleanExtra("playing", false) == playing &&
+			Track.getID(i) == id &&
+			i.getBooleanExtra(MusicStatusFetcher.FROM_MUSIC_STATUS_FETCHER,
+				false) == fromMusicStatusFetcher &&
+			same(i.getStringExtra("source"), source) &&
+			same(i.getStringExtra("artist"), artist) &&
+			same(i.getStringExtra("track"), track) &&
+			same(i.getStringExtra("album"), album) &&
+			i.getIntExtra("secs", -1) == secs &&
+			i.getIntExtra("tracknumber", -1) == tracknumber &&
+			same(i.getStringExtra("mb-trackid"), mbtrackid) &&
+			same(i.getStringExtra(MusicStatusFetcher.BROADCAST_ACTION),
+				broadcastAction);
+	}
+
+	/**
+	 * Records that i is about to be handled. Later statuses are compared
+	 * against it.
+	 */
+	void accepted(Intent i, long now) {
+		++accepted;
+		hasLast = true;
+		lastTime = now;
+		playing = i.getBooleanExtra("playing", false);
+		id = Track.getID(i);
+		fromMusicStatusFetcher = i.getBooleanExtra(
+			MusicStatusFetcher.FROM_MUSIC_STATUS_FETCHER, false);
+		source = i.getStringExtra("source");
+		artist = i.getStringExtra("artist");
+		track = i.getStringExtra("track");
+		album = i.getStringExtra("album");
+		secs = i.getIntExtra("secs", -1);
+		tracknumber = i.getIntExtra("tracknumber", -1);
+		mbtrackid = i.getStringExtra("mb-trackid");
+		broadcastAction = i.getStringExtra(MusicStatusFetcher.BROADCAST_ACTION);
+	}
+
+	void suppressed() {
+		++suppressed;
+	}
+
+	long getAccepted() {
+		return accepted;
+	}
+
+	long getSuppressed() {
+		return suppressed;
+	}
+}
@@ -0,0 +1,111 @@
+package net.jjc1138.android.scrobbler;
+
+import java.util.HashMap;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.os.SystemClock;
+
+/**
+ * Keyed timers for ScrobblerService, which are implemented with alarms so
+ * that the device can sleep while they're pending. The alarms go through
+ * AlarmReceiver, which keeps the device awake until the service has been
+ * started. The key is the action of the intent that the alarm starts the
+ * service with, and the service passes intents with those actions to fire().
+ *
+ * There is at most one pending timer for each key: setting a timer for a key
+ * that already has one replaces its deadline and task, rather than adding
+ * another one. We count how many times that happens, because each of those
+ * would have been a redundant wakeup.
+ *
+ * This is only used on the main thread, but the counters can be read from
+ * any thread.
+ */
+final class Timers {
+	private final Context context;
+	private final AlarmManager alarms;
+
+	// These are all guarded by this object's lock:
+	private final HashMap<String, Runnable> pending =
+		new HashMap<String, Runnable>();
+	private long set = 0;
+	private long collapsed = 0;
+	private long fired = 0;
+	private long stale = 0;
+
+	Timers(Context context) {
+		this.context = context;
+		alarms = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+	}
+
+	private PendingIntent intent(String key) {
+		return AlarmReceiver.getAlarmIntent(context, key);
+	}
+
+	/**
+	 * Runs task in delayMillis, replacing the timer for key if there is one.
+	 */
+	synchronized void set(String key, long delayMillis, Runnable task) {
+		++set;
+		if (pending.put(key, task) != null) {
+			++collapsed;
+		}
+		// The alarm replaces any that was already set with the same intent.
+		alarms.set(AlarmManager.ELAPSED_REALTIME_WAKEUP,
+			SystemClock.elapsedRealtime() + delayMillis, intent(key));
+	}
+
+	synchronized void cancel(String key) {
+		if (pending.remove(key) != null) {
+			alarms.cancel(intent(key));
+		}
+	}
+
+	synchronized void cancelAll() {
+		for (String key : pending.keySet()) {
+			alarms.cancel(intent(key));
+		}
+		pending.clear();
+	}
+
+	/**
+	 * This is called when the service has been started by the alarm for key.
+	 * If the timer is still pending then its task is run and this returns
+	 * true. Otherwise it was cancelled, or set by an earlier instance of the
+	 * service, and this returns false.
+	 */
+	boolean fire(String key) {
+		final Runnable task;
+		synchronized (this) {
+			task = pending.remove(key);
+			if (task == null) {
+				++stale;
+				return false;
+			}
+			++fired;
+		}
+		task.run();
+		return true;
+	}
+
+	synchronized long getSet() {
+		return set;
+	}
+
+	/**
+	 * Returns the number of timers that replaced a pending one for the same
+	 * key.
+	 */
+	synchronized long getCollapsed() {
+		return collapsed;
+	}
+
+	synchronized long getFired() {
+		return fired;
+	}
+
+	synchronized long getStale() {
+		return stale;
+	}
+}
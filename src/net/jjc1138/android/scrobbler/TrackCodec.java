@@ -0,0 +1,222 @@
+package net.jjc1138.android.scrobbler;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.UnsupportedEncodingException;
+
+/**
+ * A compact binary format for Tracks and QueueEntries. It replaces Java
+ * serialization, which stored a full class descriptor and boxed fields for
+ * every single entry and was slow to read back.
+ *
+ * A Track looks like this:
+ *  byte   bitmap saying which of the optional fields are present
+ *  varint MediaStore ID (zigzag encoded, because it's -1 if there isn't one)
+ *  byte   source
+ *  string artist
+ *  string track
+ *  string album (optional)
+ *  varint track number (optional)
+ *  varint length in milliseconds (optional)
+ *  string MusicBrainz track ID (optional)
+ *
+ * A QueueEntry is a format version byte, followed by the start time as a
+ * zigzag encoded varint, followed by the Track.
+ * Strings are stored as a varint byte count followed by UTF-8.
+ *
+ * Older versions wrote each queued Track with ObjectOutputStream, and those
+ * can still be read by decodeTrack(). Their data starts with the
+ * serialization stream magic number instead of our version byte.
+ */
+final class TrackCodec {
+	static final int VERSION = 1;
+
+	private static final int HAS_ALBUM = 1;
+	private static final int HAS_TRACKNUMBER = 2;
+	private static final int HAS_MBTRACKID = 4;
+	private static final int HAS_LENGTH = 8;
+
+	// ObjectStreamConstants.STREAM_MAGIC:
+	private static final int SERIALIZED_MAGIC_0 = 0xac;
+	private static final int SERIALIZED_MAGIC_1 = 0xed;
+
+	private static final String encoding = "UTF-8";
+
+	private TrackCodec() {}
+
+	static boolean isSerialized(byte[] data) {
+		return data.length >= 2 &&
+			(data[0] & 0xff) == SERIALIZED_MAGIC_0 &&
+			(data[1] & 0xff) == SERIALIZED_MAGIC_1;
+	}
+
+	static byte[] encodeEntry(QueueEntry e) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(64);
+		out.write(VERSION);
+		writeVarLong(out, zigzag(e.getStartTime()));
+		writeTrackBody(out, e.getTrack());
+		return out.toByteArray();
+	}
+
+	/**
+	 * Decodes a Track written by an ObjectOutputStream in older versions.
+	 */
+	static Track decodeTrack(byte[] data) throws IOException {
+		if (!isSerialized(data)) {
+			throw new IOException("Not a serialized track");
+		}
+		ObjectInputStream ois =
+			new ObjectInputStream(new ByteArrayInputStream(data));
+		try {
+			return (Track) ois.readObject();
+		} catch (ClassNotFoundException e) {
+			throw new IOException();
+		} catch (ClassCastException e) {
+			throw new IOException();
+		} finally {
+			ois.close();
+		}
+	}
+
+	static QueueEntry decodeEntry(byte[] data) throws IOException {
+		Reader in = new Reader(data, 0);
+		checkVersion(in);
+		final long startTime = unzigzag(in.readVarLong());
+		return new QueueEntry(readTrackBody(in), startTime);
+	}
+
+	/**
+	 * Like decodeEntry(), but only the start time is decoded now. The Track
+	 * is decoded by QueueEntry.loadTrack() when it is needed.
+	 */
+	static QueueEntry decodeEntryLazily(byte[] data) throws IOException {
+		Reader in = new Reader(data, 0);
+		checkVersion(in);
+		final long startTime = unzigzag(in.readVarLong());
+		return new QueueEntry(data, in.pos, startTime);
+	}
+
+	static Track decodeTrackBody(byte[] data, int offset) throws IOException {
+		return readTrackBody(new Reader(data, offset));
+	}
+
+	private static void checkVersion(Reader in) throws IOException {
+		final int version = in.readByte();
+		if (version != VERSION) {
+			throw new IOException("Unknown track format version " + version);
+		}
+	}
+
+	private static void writeTrackBody(ByteArrayOutputStream out, Track t) {
+		final String album = t.getAlbum();
+		final Integer tracknumber = t.getTracknumber();
+		final String mbtrackid = t.getMbtrackid();
+		final Long length = t.getMillis();
+		out.write(
+			(album != null ? HAS_ALBUM : 0) |
+			(tracknumber != null ? HAS_TRACKNUMBER : 0) |
+			(mbtrackid != null ? HAS_MBTRACKID : 0) |
+			(length != null ? HAS_LENGTH : 0));
+		writeVarLong(out, zigzag(t.getID()));
+		out.write(t.getSource());
+		writeString(out, t.getArtist());
+		writeString(out, t.getTrack());
+		if (album != null) {
+			writeString(out, album);
+		}
+		if (tracknumber != null) {
+			writeVarLong(out, zigzag(tracknumber));
+		}
+		if (length != null) {
+			writeVarLong(out, zigzag(length));
+		}
+		if (mbtrackid != null) {
+			writeString(out, mbtrackid);
+		}
+	}
+
+	private static Track readTrackBody(Reader in) throws IOException {
+		final int present = in.readByte();
+		final long id = unzigzag(in.readVarLong());
+		final char source = (char) in.readByte();
+		final String artist = in.readString();
+		final String track = in.readString();
+		final String album =
+			(present & HAS_ALBUM) != 0 ? in.readString() : null;
+		final Integer tracknumber = (present & HAS_TRACKNUMBER) != 0 ?
+			(int) unzigzag(in.readVarLong()) : null;
+		final Long length = (present & HAS_LENGTH) != 0 ?
+			unzigzag(in.readVarLong()) : null;
+		final String mbtrackid =
+			(present & HAS_MBTRACKID) != 0 ? in.readString() : null;
+		return new Track(id, source, artist, track, length, album,
+			tracknumber, mbtrackid);
+	}
+
+	private static long zigzag(long n) {
+		return (n << 1) ^ (n >> 63);
+	}
+
+	private static long unzigzag(long n) {
+		return (n >>> 1) ^ -(n & 1);
+	}
+
+	private static void writeVarLong(ByteArrayOutputStream out, long n) {
+		while ((n & ~0x7fL) != 0) {
+			out.write((int) ((n & 0x7f) | 0x80));
+			n >>>= 7;
+		}
+		out.write((int) n);
+	}
+
+	private static void writeString(ByteArrayOutputStream out, String s) {
+		try {
+			final byte[] b = s.getBytes(encoding);
+			writeVarLong(out, b.length);
+			out.write(b, 0, b.length);
+		} catch (UnsupportedEncodingException e) {
+			assert false;
+		}
+	}
+
+	private static class Reader {
+		Reader(byte[] data, int pos) {
+			this.data = data;
+			this.pos = pos;
+		}
+
+		int readByte() throws IOException {
+			if (pos >= data.length) {
+				throw new IOException("Truncated track");
+			}
+			return data[pos++] & 0xff;
+		}
+
+		long readVarLong() throws IOException {
+			long result = 0;
+			for (int shift = 0; shift < 64; shift += 7) {
+				final int b = readByte();
+				result |= (long) (b & 0x7f) << shift;
+				if ((b & 0x80) == 0) {
+					return result;
+				}
+			}
+			throw new IOException("Malformed varint");
+		}
+
+		String readString() throws IOException {
+			final long length = readVarLong();
+			if (length < 0 || length > data.length - pos) {
+				throw new IOException("Truncated track");
+			}
+			final String s = new String(data, pos, (int) length, encoding);
+			pos += (int) length;
+			return s;
+		}
+
+		private final byte[] data;
+		private int pos;
+	}
+}
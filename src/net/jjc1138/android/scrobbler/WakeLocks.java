@@ -0,0 +1,100 @@
+package net.jjc1138.android.scrobbler;
+
+import android.os.PowerManager;
+import android.os.SystemClock;
+
+/**
+ * Keeps the CPU awake while we have work to do, and only then. Each piece of
+ * work acquires the lock for its reason and releases it when it's finished.
+ * The underlying WakeLock is held while any reason is, and we keep track of
+ * how long it was held for each reason, so that we can see where the battery
+ * goes.
+ *
+ * Waiting is not work: anything that needs to happen later should be done
+ * with an alarm, so that the CPU can sleep in the meantime.
+ */
+final class WakeLocks {
+	// Handling an intent (which includes enqueuing tracks, and therefore
+	// writing them to disk), or an alarm.
+	static final int EVENT = 0;
+	// Loading the queue from disk.
+	static final int LOADING = 1;
+	// Scrobbling, from being requested until the scrobble thread has
+	// finished.
+	static final int SCROBBLING = 2;
+	// Sending a now playing notification.
+	static final int NOW_PLAYING = 3;
+	static final int REASONS = 4;
+	private static final String[] NAMES =
+		{ "event", "loading", "scrobbling", "nowPlaying" };
+
+	private final PowerManager.WakeLock lock;
+	private final Histogram heldTimes;
+
+	// These are all guarded by this object's lock:
+	private final int[] holds = new int[REASONS];
+	private final long[] since = new long[REASONS];
+	private final long[] heldTime = new long[REASONS];
+	private int held = 0;
+	private long heldSince;
+
+	/**
+	 * Each period that the WakeLock is held for is recorded in heldTimes.
+	 */
+	WakeLocks(PowerManager powerManager, String tag, Histogram heldTimes) {
+		lock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, tag);
+		lock.setReferenceCounted(false);
+		this.heldTimes = heldTimes;
+	}
+
+	static String getName(int reason) {
+		return NAMES[reason];
+	}
+
+	synchronized void acquire(int reason) {
+		final long now = SystemClock.uptimeMillis();
+		if (holds[reason]++ == 0) {
+			since[reason] = now;
+		}
+		if (held++ == 0) {
+			heldSince = now;
+			lock.acquire();
+		}
+	}
+
+	synchronized void release(int reason) {
+		if (holds[reason] == 0) {
+			assert false;
+			return;
+		}
+		final long now = SystemClock.uptimeMillis();
+		if (--holds[reason] == 0) {
+			heldTime[reason] += now - since[reason];
+		}
+		if (--held == 0) {
+			lock.release();
+			heldTimes.record(now - heldSince);
+		}
+	}
+
+	/**
+	 * Releases everything. This is for when the service is being destroyed,
+	 * in case some work didn't finish.
+	 */
+	synchronized void releaseAll() {
+		for (int i = 0; i < REASONS; ++i) {
+			while (holds[i] > 0) {
+				release(i);
+			}
+		}
+	}
+
+	/**
+	 * Returns the total time that the lock has been held for the given
+	 * reason, including the current hold if there is one.
+	 */
+	synchronized long getHeldTime(int reason) {
+		return heldTime[reason] + (holds[reason] == 0 ? 0 :
+			SystemClock.uptimeMillis() - since[reason]);
+	}
+}
@@ -0,0 +1,97 @@
+package net.jjc1138.android.scrobbler;
+
+import junit.framework.TestCase;
+
+public class BatchSizerTest extends TestCase {
+	private static final int MAX = 50;
+	private static final long SLOW = 1000;
+	// This is the size that BatchSizer assumes a track is at first, so using
+	// it keeps the average where it started:
+	private static final int BYTES_PER_TRACK = 200;
+
+	private static void ok(BatchSizer b, long roundTrip) {
+		final int n = b.getBatchSize();
+		b.succeeded(n, n * BYTES_PER_TRACK, roundTrip);
+	}
+
+	public void testStartsAtMaximum() {
+		assertEquals(MAX, new BatchSizer(MAX, SLOW).getBatchSize());
+	}
+
+	public void testFailuresHalve() {
+		final BatchSizer b = new BatchSizer(MAX, SLOW);
+		final int[] expected = { 25, 12, 6, 3, 1, 1, 1 };
+		for (int size : expected) {
+			b.failed();
+			assertEquals(size, b.getBatchSize());
+		}
+		assertEquals(expected.length, b.getDecreases());
+		assertEquals(0, b.getIncreases());
+	}
+
+	public void testSuccessesGrowByOne() {
+		final BatchSizer b = new BatchSizer(MAX, SLOW);
+		for (int i = 0; i < 6; ++i) {
+			b.failed();
+		}
+		assertEquals(1, b.getBatchSize());
+		for (int size = 2; size <= MAX; ++size) {
+			ok(b, 0);
+			assertEquals(size, b.getBatchSize());
+		}
+		// It never goes past the maximum:
+		ok(b, 0);
+		assertEquals(MAX, b.getBatchSize());
+		assertEquals(MAX, b.getIncreases());
+	}
+
+	public void testFailedOkSequence() {
+		final BatchSizer b = new BatchSizer(MAX, SLOW);
+		b.failed();
+		b.failed();
+		assertEquals(12, b.getBatchSize());
+		ok(b, 0);
+		ok(b, 0);
+		assertEquals(14, b.getBatchSize());
+		b.failed();
+		assertEquals(7, b.getBatchSize());
+		ok(b, 0);
+		assertEquals(8, b.getBatchSize());
+		assertEquals(3, b.getDecreases());
+		assertEquals(3, b.getIncreases());
+	}
+
+	public void testSlowSuccessHalves() {
+		final BatchSizer b = new BatchSizer(MAX, SLOW);
+		ok(b, SLOW + 1);
+		assertEquals(25, b.getBatchSize());
+		ok(b, SLOW);
+		assertEquals(26, b.getBatchSize());
+		assertEquals(1, b.getDecreases());
+	}
+
+	public void testSmallSubmissionsDontGrow() {
+		final BatchSizer b = new BatchSizer(MAX, SLOW);
+		b.failed();
+		assertEquals(25, b.getBatchSize());
+		// Fewer tracks than it allowed don't tell us anything about the link:
+		for (int i = 0; i < 10; ++i) {
+			b.succeeded(1, BYTES_PER_TRACK, 0);
+		}
+		assertEquals(25, b.getBatchSize());
+		assertEquals(0, b.getIncreases());
+	}
+
+	public void testLargeTracksShrinkBatches() {
+		final BatchSizer b = new BatchSizer(MAX, SLOW);
+		for (int i = 0; i < 10; ++i) {
+			final int n = b.getBatchSize();
+			b.succeeded(n, n * BYTES_PER_TRACK * 4, 0);
+		}
+		// The window is in bytes, so tracks four times the size fit a quarter
+		// as many:
+		final int size = b.getBatchSize();
+		assertTrue(size < MAX);
+		assertTrue(size >= MAX / 4);
+	}
+}
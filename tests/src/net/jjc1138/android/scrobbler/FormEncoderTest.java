@@ -0,0 +1,129 @@
+package net.jjc1138.android.scrobbler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URLEncoder;
+import java.util.zip.GZIPInputStream;
+
+import junit.framework.TestCase;
+
+import org.apache.http.HttpEntity;
+
+public class FormEncoderTest extends TestCase {
+	private static String encode(String s) {
+		return new FormEncoder().appendEncoded(s).toString();
+	}
+
+	private static void assertEncodedLikeURLEncoder(String s)
+		throws IOException {
+
+		assertEquals(URLEncoder.encode(s, "UTF-8"), encode(s));
+	}
+
+	private static byte[] read(InputStream in) throws IOException {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		final byte[] buffer = new byte[1024];
+		int n;
+		while ((n = in.read(buffer)) != -1) {
+			out.write(buffer, 0, n);
+		}
+		in.close();
+		return out.toByteArray();
+	}
+
+	public void testStrings() throws IOException {
+		assertEncodedLikeURLEncoder("");
+		assertEncodedLikeURLEncoder("Plain ASCII.");
+		assertEncodedLikeURLEncoder("a-b_c*d.e~f+g&h=i%j/k?l#m\"n'o");
+		assertEncodedLikeURLEncoder("Bj\u00f6rk");
+		assertEncodedLikeURLEncoder("\u5742\u672c\u9f8d\u4e00");
+		assertEncodedLikeURLEncoder("\u0000\u007f\u0080\u07ff\u0800\uffff");
+	}
+
+	public void testSurrogates() throws IOException {
+		// A pair makes a single four byte character:
+		assertEncodedLikeURLEncoder("\ud83c\udfb5");
+		assertEncodedLikeURLEncoder("a\ud83c\udfb5b\ud800\udc00\udbff\udfff");
+		// Unpaired surrogates:
+		assertEncodedLikeURLEncoder("a\ud83cb");
+		assertEncodedLikeURLEncoder("a\udfb5b");
+		assertEncodedLikeURLEncoder("\udfb5\ud83c");
+		assertEncodedLikeURLEncoder("\ud83c\ud83c\udfb5");
+		// A high surrogate at the end:
+		assertEncodedLikeURLEncoder("a\ud83c");
+	}
+
+	public void testEveryChar() throws IOException {
+		for (int c = 0; c <= 0xffff; ++c) {
+			final String s = String.valueOf((char) c);
+			assertEquals("Char " + c, URLEncoder.encode(s, "UTF-8"), encode(s));
+			assertEquals("Char " + c, URLEncoder.encode(s, "UTF-8"),
+				new FormEncoder().appendEncoded((char) c).toString());
+		}
+	}
+
+	public void testNumbers() {
+		final long[] numbers = {
+			0, 7, 10, -1, -10, 1234567890123L,
+			Long.MAX_VALUE, Long.MIN_VALUE,
+		};
+		for (long n : numbers) {
+			assertEquals(Long.toString(n),
+				new FormEncoder().appendNumber(n).toString());
+		}
+	}
+
+	public void testFields() {
+		final FormEncoder f = new FormEncoder();
+		f.appendRaw("s=").appendEncoded("x y");
+		f.appendField('a', 0).appendEncoded("A&B");
+		f.appendField('b', 12).appendNumber(42);
+		f.appendField('n').appendEncoded("");
+		assertEquals("s=x+y&a[0]=A%26B&b[12]=42&n=", f.toString());
+		assertEquals(f.toString().length(), f.size());
+		f.reset();
+		assertEquals(0, f.size());
+		assertEquals("&c=", f.appendField('c').toString());
+	}
+
+	public void testBufferGrows() throws IOException {
+		final StringBuilder s = new StringBuilder();
+		for (int i = 0; i < 5000; ++i) {
+			s.append("\u00e9\ud83c\udfb5 ");
+		}
+		assertEncodedLikeURLEncoder(s.toString());
+	}
+
+	public void testEntity() throws IOException {
+		final FormEncoder f = new FormEncoder();
+		f.appendRaw("s=").appendEncoded("Bj\u00f6rk");
+		final HttpEntity entity = f.toEntity();
+		final byte[] expected = f.toString().getBytes("US-ASCII");
+		assertEquals(expected.length, entity.getContentLength());
+		assertEquals("application/x-www-form-urlencoded",
+			entity.getContentType().getValue());
+		assertEquals(f.toString(),
+			new String(read(entity.getContent()), "US-ASCII"));
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		entity.writeTo(out);
+		assertEquals(f.toString(), out.toString("US-ASCII"));
+	}
+
+	public void testGzipEntity() throws IOException {
+		final FormEncoder f = new FormEncoder();
+		for (int i = 0; i < 100; ++i) {
+			f.appendField('a', i).appendEncoded("Track \u00e9 " + i);
+		}
+		// The compressed buffer is reused, so we make two entities:
+		for (int k = 0; k < 2; ++k) {
+			final HttpEntity entity = f.toGzipEntity();
+			assertEquals("gzip", entity.getContentEncoding().getValue());
+			final byte[] compressed = read(entity.getContent());
+			assertEquals(compressed.length, entity.getContentLength());
+			assertTrue(compressed.length < f.size());
+			assertEquals(f.toString(), new String(read(new GZIPInputStream(
+				entity.getContent())), "US-ASCII"));
+		}
+	}
+}
@@ -0,0 +1,128 @@
+package net.jjc1138.android.scrobbler;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ServerSocket;
+
+import junit.framework.TestCase;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
+
+public class HttpTransportTest extends TestCase {
+	private StandInServer server;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		server = new StandInServer(0);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		server.close();
+		super.tearDown();
+	}
+
+	private static String status(HttpTransport t, HttpUriRequest request)
+		throws IOException {
+
+		final HttpResponse r = t.execute(request);
+		final HttpEntity e = r.getEntity();
+		try {
+			return new ResponseLines(e).next();
+		} finally {
+			e.consumeContent();
+		}
+	}
+
+	private static HttpPost post(String url, FormEncoder body, boolean gzip) {
+		final HttpPost post = new HttpPost(url);
+		post.setEntity(gzip ? body.toGzipEntity() : body.toEntity());
+		return post;
+	}
+
+	public void testReuse() throws IOException {
+		final HttpTransport t = new HttpTransport();
+		try {
+			final int n = 20;
+			for (int i = 0; i < n; ++i) {
+				assertEquals("OK",
+					status(t, new HttpGet(server.getURL("/?hs=true"))));
+			}
+			assertEquals(1, server.getConnections());
+			assertEquals(n, t.getRequests());
+			assertEquals(n - 1, t.getReusedConnections());
+			assertEquals((float) (n - 1) / n, t.getReuseRate(), 0.0001f);
+		} finally {
+			t.shutdown();
+		}
+	}
+
+	public void testBodies() throws IOException {
+		final HttpTransport t = new HttpTransport();
+		try {
+			final FormEncoder f = new FormEncoder();
+			RequestBodies.nowPlaying(f, "session", new Track(-1, 'P',
+				"Artist", "Track", 200000L, "Album", 3, null));
+			final String nowPlaying = f.toString();
+			assertEquals("OK",
+				status(t, post(server.getURL("/np"), f, false)));
+			assertEquals("OK",
+				status(t, post(server.getURL("/np"), f, true)));
+			// Both went on the same connection, and the gzipped one arrived
+			// intact:
+			assertEquals(1, server.getConnections());
+			assertEquals(1, t.getReusedConnections());
+			assertEquals(2, server.getBodies().size());
+			assertEquals(nowPlaying, server.getBodies().get(0));
+			assertEquals(nowPlaying, server.getBodies().get(1));
+		} finally {
+			t.shutdown();
+		}
+	}
+
+	public void testSocketTimeout() throws IOException {
+		final HttpTransport t = new HttpTransport(1000, 200);
+		try {
+			server.setLatency(1000);
+			final long start = System.nanoTime();
+			try {
+				status(t, new HttpGet(server.getURL("/slow")));
+				fail();
+			} catch (InterruptedIOException e) {
+				// SocketTimeoutException.
+			}
+			final long elapsed = (System.nanoTime() - start) / 1000000;
+			assertTrue("Took " + elapsed + "ms", elapsed < 1000);
+
+			// The timed out connection isn't reused, but the next request
+			// still gets through:
+			server.setLatency(0);
+			assertEquals("OK", status(t, new HttpGet(server.getURL("/"))));
+		} finally {
+			t.shutdown();
+		}
+	}
+
+	public void testConnectionRefused() throws IOException {
+		// This port has nothing listening on it once it's closed:
+		final ServerSocket unused = new ServerSocket(0);
+		final int port = unused.getLocalPort();
+		unused.close();
+
+		final HttpTransport t = new HttpTransport(1000, 1000);
+		try {
+			status(t, new HttpGet("http://127.0.0.1:" + port + "/"));
+			fail();
+		} catch (IOException e) {
+			// Expected.
+		} finally {
+			t.shutdown();
+		}
+		assertEquals(0, t.getReusedConnections());
+	}
+}
@@ -0,0 +1,272 @@
+package net.jjc1138.android.scrobbler;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+public class JournalQueueStoreTest extends AndroidTestCase {
+	private static final String[] TARGETS = { "lastfm", "other" };
+
+	private File dir;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		dir = new File(getContext().getCacheDir(), "journal-test");
+		deleteAll();
+		assertTrue(dir.mkdirs());
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		deleteAll();
+		super.tearDown();
+	}
+
+	private void deleteAll() {
+		final File[] files = dir.listFiles();
+		if (files != null) {
+			for (File f : files) {
+				f.delete();
+			}
+		}
+		dir.delete();
+	}
+
+	private static QueueEntry entry(long startTime) {
+		return new QueueEntry(new Track(-1, 'P', "Artist",
+			"Track " + startTime, 200000L, null, null, null), startTime);
+	}
+
+	private static List<Long> startTimes(List<QueueEntry> entries) {
+		final ArrayList<Long> times = new ArrayList<Long>();
+		for (QueueEntry e : entries) {
+			times.add(e.getStartTime());
+		}
+		return times;
+	}
+
+	private static List<Long> range(long first, int n) {
+		final ArrayList<Long> times = new ArrayList<Long>();
+		for (long i = first; i < first + n; ++i) {
+			times.add(i);
+		}
+		return times;
+	}
+
+	private JournalQueueStore open() {
+		return new JournalQueueStore(dir, TARGETS);
+	}
+
+	private List<Long> reload() throws IOException {
+		final JournalQueueStore store = open();
+		try {
+			return startTimes(store.load());
+		} finally {
+			store.close();
+		}
+	}
+
+	// Appends n entries, and returns them.
+	private static List<QueueEntry> append(QueueStore store, long first,
+		int n) throws IOException {
+
+		final ArrayList<QueueEntry> entries = new ArrayList<QueueEntry>();
+		for (long i = first; i < first + n; ++i) {
+			final QueueEntry e = entry(i);
+			store.append(e);
+			entries.add(e);
+		}
+		return entries;
+	}
+
+	public void testReload() throws IOException {
+		JournalQueueStore store = open();
+		assertTrue(store.load().isEmpty());
+		final List<QueueEntry> entries = append(store, 0, 10);
+		store.acknowledge("lastfm", entries.subList(0, 6));
+		store.acknowledge("other", entries.subList(0, 3));
+		store.close();
+
+		store = open();
+		// Only the ones that every target has acknowledged are forgotten:
+		assertEquals(range(3, 7), startTimes(store.load()));
+		assertEquals(entries.get(5).getSequence(),
+			store.getAcknowledged("lastfm"));
+		assertEquals(entries.get(2).getSequence(),
+			store.getAcknowledged("other"));
+		store.close();
+	}
+
+	public void testCompaction() throws IOException {
+		final JournalQueueStore store = open();
+		store.load();
+		// Enough to fill more than one segment:
+		final List<QueueEntry> entries = append(store, 0, 3000);
+		assertTrue(dir.list().length > 1);
+		for (String target : TARGETS) {
+			store.acknowledge(target, entries);
+		}
+		store.compact();
+		assertEquals(1, dir.list().length);
+		store.close();
+
+		final JournalQueueStore reloaded = open();
+		assertTrue(reloaded.load().isEmpty());
+		append(reloaded, 3000, 1);
+		reloaded.close();
+		assertEquals(range(3000, 1), reload());
+	}
+
+	public void testTornWrite() throws IOException {
+		JournalQueueStore store = open();
+		store.load();
+		append(store, 0, 3);
+		store.close();
+
+		// Half of a record, as if we were switched off while writing it:
+		final File newest = new File(dir, dir.list()[0]);
+		final FileOutputStream out = new FileOutputStream(newest, true);
+		out.write(new byte[] { 0, 0, 0, 50, 'E', 1, 2 });
+		out.close();
+
+		store = open();
+		assertEquals(range(0, 3), startTimes(store.load()));
+		append(store, 3, 1);
+		store.close();
+		assertEquals(range(0, 4), reload());
+	}
+
+	public void testUnreadableSegment() throws IOException {
+		JournalQueueStore store = open();
+		store.load();
+		append(store, 0, 2);
+		store.close();
+
+		// A newer segment that can't be opened:
+		assertTrue(new File(dir, "1000").mkdir());
+
+		store = open();
+		assertEquals(range(0, 2), startTimes(store.load()));
+		// We can still append, in a new segment after it:
+		append(store, 2, 1);
+		store.close();
+		assertTrue(new File(dir, "1001").isFile());
+		assertEquals(range(0, 3), reload());
+	}
+
+	public void testLoadIsLazy() throws IOException {
+		JournalQueueStore store = open();
+		store.load();
+		final List<QueueEntry> appended = append(store, 0, 3);
+		store.close();
+
+		store = open();
+		final List<QueueEntry> loaded = store.load();
+		store.close();
+		assertEquals(3, loaded.size());
+		for (int i = 0; i < loaded.size(); ++i) {
+			final QueueEntry e = loaded.get(i);
+			// Only the start time is decoded until the Track is needed:
+			assertNull(e.getTrack());
+			assertEquals(i, e.getStartTime());
+			e.loadTrack();
+			final Track expected = appended.get(i).getTrack();
+			final Track t = e.getTrack();
+			assertEquals(expected.getArtist(), t.getArtist());
+			assertEquals(expected.getTrack(), t.getTrack());
+			assertEquals(expected.getMillis(), t.getMillis());
+			// Loading it again changes nothing:
+			e.loadTrack();
+			assertSame(t, e.getTrack());
+		}
+	}
+
+	public void testLoadTrackFromTwoThreads() throws Exception {
+		JournalQueueStore store = open();
+		store.load();
+		append(store, 0, 1000);
+		store.close();
+		store = open();
+		final List<QueueEntry> loaded = store.load();
+		store.close();
+
+		// Two targets' scrobble tasks can load the same entries at once, and
+		// they must both end up with the same Track:
+		final Track[][] seen = new Track[2][loaded.size()];
+		final Throwable[] failure = new Throwable[1];
+		final Thread[] threads = new Thread[seen.length];
+		for (int i = 0; i < threads.length; ++i) {
+			final Track[] mine = seen[i];
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						for (int j = 0; j < mine.length; ++j) {
+							final QueueEntry e = loaded.get(j);
+							e.loadTrack();
+							mine[j] = e.getTrack();
+						}
+					} catch (Throwable t) {
+						synchronized (failure) {
+							failure[0] = t;
+						}
+					}
+				}
+			};
+		}
+		for (Thread t : threads) {
+			t.start();
+		}
+		for (Thread t : threads) {
+			t.join();
+		}
+		synchronized (failure) {
+			if (failure[0] != null) {
+				throw new AssertionError(failure[0]);
+			}
+		}
+		for (int j = 0; j < loaded.size(); ++j) {
+			assertNotNull(seen[0][j]);
+			assertSame(seen[0][j], seen[1][j]);
+			assertEquals("Track " + j, seen[0][j].getTrack());
+		}
+	}
+
+	/**
+	 * This logs how long it takes to load a journal of 10k and 100k entries,
+	 * which is what the service waits for before it can start scrobbling,
+	 * and how long decoding every Track up front would have added.
+	 */
+	public void testLoadBenchmark() throws IOException {
+		for (int n : new int[] { 10000, 100000 }) {
+			deleteAll();
+			assertTrue(dir.mkdirs());
+			JournalQueueStore store = open();
+			store.load();
+			append(store, 0, n);
+			store.close();
+
+			store = open();
+			long start = System.nanoTime();
+			final List<QueueEntry> loaded = store.load();
+			final long loadTime = System.nanoTime() - start;
+			store.close();
+			assertEquals(n, loaded.size());
+
+			start = System.nanoTime();
+			for (QueueEntry e : loaded) {
+				e.loadTrack();
+			}
+			final long decodeTime = System.nanoTime() - start;
+			Log.i(ScrobblerService.LOG_TAG, "Loaded " + n + " entries in " +
+				loadTime / 1000000 + "ms; decoding their tracks took another " +
+				decodeTime / 1000000 + "ms.");
+		}
+	}
+}
@@ -0,0 +1,97 @@
+package net.jjc1138.android.scrobbler;
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+import android.content.Intent;
+import android.util.Log;
+
+public class PlayTrackerTest extends TestCase {
+	public void testDecisions() {
+		final StatusReplay r = new StatusReplay(false);
+		final long start = r.currentTimeMillis();
+		// A is played to the end, and then B starts:
+		r.status(StatusReplay.playing("X", "A", 200));
+		r.advance(200000);
+		r.status(StatusReplay.playing("X", "B", 100));
+		// B is only played for 10s before C:
+		r.advance(10000);
+		r.status(StatusReplay.playing("X", "C", 300));
+		// C is played to the end, and then the player stops:
+		r.advance(300000);
+		r.status(StatusReplay.stopped());
+		// D is paused half way through, resumed, and then paused again
+		// before its end. It's enqueued when we've been idle for long
+		// enough:
+		r.status(StatusReplay.playing("X", "D", 180));
+		r.advance(60000);
+		r.status(StatusReplay.stopped());
+		r.advance(30000);
+		r.status(StatusReplay.playing("X", "D", 180));
+		r.advance(40000);
+		r.status(StatusReplay.stopped());
+		r.advance(StatusReplay.WAITING_TIME - 1);
+		assertEquals(2, r.getDecisions().size());
+		r.advance(1);
+
+		final long c = start + 210000;
+		final long d = c + 300000;
+		assertEquals(Arrays.asList(
+			PlayTracker.CHANGED + " X - A " + start,
+			PlayTracker.STOPPED + " X - C " + c,
+			PlayTracker.IDLE + " X - D " + d), r.getDecisions());
+	}
+
+	public void testUnscrobblableTrack() {
+		final StatusReplay r = new StatusReplay(false);
+		// There's no artist, so this can't be scrobbled however long it
+		// plays for:
+		r.status(StatusReplay.playing(null, "A", 200));
+		r.advance(200000);
+		r.status(StatusReplay.stopped());
+		r.advance(StatusReplay.WAITING_TIME);
+		assertTrue(r.getDecisions().isEmpty());
+	}
+
+	public void testRepeatedStatusWithoutLength() {
+		final StatusReplay r = new StatusReplay(false);
+		final long start = r.currentTimeMillis();
+		// Radio tracks don't have a length:
+		final Intent radio =
+			new Intent(StatusBroadcastReceiver.ACTION_MUSIC_STATUS)
+			.putExtra("playing", true)
+			.putExtra("source", "R")
+			.putExtra("artist", "X")
+			.putExtra("track", "A");
+		r.status(radio);
+		r.advance(1000);
+		r.status(radio);
+		r.advance(300000);
+		r.status(radio);
+		assertTrue(r.getDecisions().isEmpty());
+		r.status(StatusReplay.stopped());
+		assertTrue(r.getDecisions().isEmpty());
+		r.advance(StatusReplay.WAITING_TIME);
+		assertEquals(Arrays.asList(PlayTracker.IDLE + " X - A " + start),
+			r.getDecisions());
+	}
+
+	/**
+	 * This replays a long random listening session, and logs how many
+	 * statuses per second the tracker can handle.
+	 */
+	public void testReplayThroughput() {
+		final int n = 100000;
+		final StatusReplay r = new StatusReplay(true);
+		final long start = System.nanoTime();
+		r.playRandom(1, n);
+		final long elapsed = System.nanoTime() - start;
+		Log.i(ScrobblerService.LOG_TAG, "Replayed " + r.getStatuses() +
+			" statuses (" + r.getSuppressed() + " suppressed) at " +
+			(r.getStatuses() * 1000000000L / Math.max(1, elapsed)) +
+			" statuses/s, enqueuing " + r.getDecisions().size() +
+			" track(s).");
+		assertTrue(r.getStatuses() >= n);
+		assertFalse(r.getDecisions().isEmpty());
+	}
+}
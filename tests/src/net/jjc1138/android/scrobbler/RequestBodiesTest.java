@@ -0,0 +1,191 @@
+package net.jjc1138.android.scrobbler;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+import android.os.Debug;
+import android.util.Log;
+
+public class RequestBodiesTest extends TestCase {
+	private static final String SESSION = "17E61E13454CDD8B68E8D7DEEEDF6170";
+
+	private static String enc(String s) {
+		try {
+			return URLEncoder.encode(s, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	// This is how submission bodies used to be built, before FormEncoder.
+	private static String legacySubmission(String session,
+		List<QueueEntry> submission) {
+
+		StringBuffer sb = new StringBuffer("s=" + session);
+		int submissionSize = submission.size();
+		for (int i = 0; i < submissionSize; ++i) {
+			QueueEntry e = submission.get(i);
+			Track t = e.getTrack();
+			Long secs = t.getSecs();
+			String album = t.getAlbum();
+			Integer tracknumber = t.getTracknumber();
+			String mbtrackid = t.getMbtrackid();
+			sb.append('&' +
+				"a[" + i + "]=" + enc(t.getArtist()) + '&' +
+				"t[" + i + "]=" + enc(t.getTrack()) + '&' +
+				"i[" + i + "]=" + enc(
+					Long.toString(e.getStartTime() / 1000)) + '&' +
+				"o[" + i + "]=" + enc(
+					Character.toString(t.getSource())) + '&' +
+				"r[" + i + "]=" + '&' +
+				"l[" + i + "]=" + enc(
+					secs == null ? "" : secs.toString()) + '&' +
+				"b[" + i + "]=" + enc(
+					album == null ? "" : album) + '&' +
+				"n[" + i + "]=" + enc(
+					tracknumber == null ?
+						"" : tracknumber.toString()) + '&' +
+				"m[" + i + "]=" + enc(
+					mbtrackid == null ? "" : mbtrackid));
+		}
+		return sb.toString();
+	}
+
+	// The same thing for a now playing body, in the same style.
+	private static String legacyNowPlaying(String session, Track t) {
+		Long secs = t.getSecs();
+		String album = t.getAlbum();
+		Integer tracknumber = t.getTracknumber();
+		String mbtrackid = t.getMbtrackid();
+		return "s=" + session + '&' +
+			"a=" + enc(t.getArtist()) + '&' +
+			"t=" + enc(t.getTrack()) + '&' +
+			"b=" + enc(album == null ? "" : album) + '&' +
+			"l=" + enc(secs == null ? "" : secs.toString()) + '&' +
+			"n=" + enc(tracknumber == null ? "" : tracknumber.toString()) +
+			'&' +
+			"m=" + enc(mbtrackid == null ? "" : mbtrackid);
+	}
+
+	private static String submission(FormEncoder f, String session,
+		List<QueueEntry> entries) {
+
+		RequestBodies.startSubmission(f, session);
+		for (int i = 0; i < entries.size(); ++i) {
+			RequestBodies.appendSubmission(f, i, entries.get(i));
+		}
+		return f.toString();
+	}
+
+	// Every combination of the optional fields, some awkward characters, and
+	// enough of them for the indexes to go past one digit.
+	private static List<QueueEntry> entries() {
+		final String[] names = {
+			"Plain",
+			"Sigur R\u00f3s & Friends",
+			"a+b=c/d?e%f#g",
+			"\u5742\u672c\u9f8d\u4e00",
+			"\ud83c\udfb5 Notes \ud834\udd1e",
+			"Broken \ud83c surrogate \udfb5",
+			"",
+		};
+		final char[] sources = { 'P', 'R', 'E', 'U' };
+		final ArrayList<QueueEntry> entries = new ArrayList<QueueEntry>();
+		for (int present = 0; present < 16; ++present) {
+			for (int k = 0; k < names.length; ++k) {
+				final String name = names[k];
+				final Track t = new Track(k == 0 ? 1234 : -1,
+					sources[(present + k) % sources.length],
+					name.length() == 0 ? "Artist" : name,
+					"Track " + name,
+					(present & 1) != 0 ? 123456L + k : null,
+					(present & 2) != 0 ? name : null,
+					(present & 4) != 0 ? k : null,
+					(present & 8) != 0 ?
+						"0e4b6a5c-3f66-4c0e-9d39-9a6f5a7c7e2a" : null);
+				entries.add(new QueueEntry(t,
+					1262304000000L + 1000L * (present * names.length + k)));
+			}
+		}
+		return entries;
+	}
+
+	public void testSubmissionMatchesLegacy() {
+		final List<QueueEntry> entries = entries();
+		final FormEncoder f = new FormEncoder();
+		for (int start = 0; start < entries.size();
+			start += ScrobblerService.MAX_SCROBBLE_TRACKS) {
+
+			final List<QueueEntry> batch = entries.subList(start, Math.min(
+				entries.size(), start + ScrobblerService.MAX_SCROBBLE_TRACKS));
+			assertEquals(legacySubmission(SESSION, batch),
+				submission(f, SESSION, batch));
+		}
+		// An empty one:
+		assertEquals(legacySubmission(SESSION, new ArrayList<QueueEntry>()),
+			submission(f, SESSION, new ArrayList<QueueEntry>()));
+	}
+
+	public void testNowPlayingMatchesLegacy() {
+		final FormEncoder f = new FormEncoder();
+		for (QueueEntry e : entries()) {
+			RequestBodies.nowPlaying(f, SESSION, e.getTrack());
+			assertEquals(legacyNowPlaying(SESSION, e.getTrack()),
+				f.toString());
+		}
+	}
+
+	/**
+	 * This logs how long each way takes to build a full submission body, and
+	 * how much each allocates.
+	 */
+	public void testBenchmark() {
+		final List<QueueEntry> batch =
+			entries().subList(0, ScrobblerService.MAX_SCROBBLE_TRACKS);
+		final FormEncoder f = new FormEncoder();
+		final int n = 2000;
+		// Warm up:
+		for (int i = 0; i < n / 10; ++i) {
+			legacySubmission(SESSION, batch);
+			submission(f, SESSION, batch);
+		}
+
+		Debug.startAllocCounting();
+		try {
+			Debug.resetThreadAllocCount();
+			Debug.resetThreadAllocSize();
+			long start = System.nanoTime();
+			for (int i = 0; i < n; ++i) {
+				legacySubmission(SESSION, batch);
+			}
+			final long legacyTime = System.nanoTime() - start;
+			final int legacyAllocs = Debug.getThreadAllocCount();
+			final int legacyBytes = Debug.getThreadAllocSize();
+
+			Debug.resetThreadAllocCount();
+			Debug.resetThreadAllocSize();
+			start = System.nanoTime();
+			for (int i = 0; i < n; ++i) {
+				RequestBodies.startSubmission(f, SESSION);
+				for (int j = 0; j < batch.size(); ++j) {
+					RequestBodies.appendSubmission(f, j, batch.get(j));
+				}
+			}
+			final long encoderTime = System.nanoTime() - start;
+			final int encoderAllocs = Debug.getThreadAllocCount();
+			final int encoderBytes = Debug.getThreadAllocSize();
+
+			Log.i(ScrobblerService.LOG_TAG, "Building a " + batch.size() +
+				" track submission: StringBuffer " + legacyTime / n / 1000 +
+				"us, " + legacyAllocs / n + " allocation(s), " +
+				legacyBytes / n + " byte(s); FormEncoder " +
+				encoderTime / n / 1000 + "us, " + encoderAllocs / n +
+				" allocation(s), " + encoderBytes / n + " byte(s).");
+		} finally {
+			Debug.stopAllocCounting();
+		}
+	}
+}
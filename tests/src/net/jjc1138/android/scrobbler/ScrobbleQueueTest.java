@@ -0,0 +1,191 @@
+package net.jjc1138.android.scrobbler;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+import android.util.Log;
+
+public class ScrobbleQueueTest extends TestCase {
+	private static List<QueueEntry> entries(int first, int n) {
+		final ArrayList<QueueEntry> entries = new ArrayList<QueueEntry>();
+		for (int i = first; i < first + n; ++i) {
+			entries.add(new QueueEntry(new Track(-1, 'P', "Artist",
+				"Track " + i, 200000L, null, null, null), i));
+		}
+		return entries;
+	}
+
+	private static List<Long> startTimes(List<QueueEntry> entries) {
+		final ArrayList<Long> times = new ArrayList<Long>();
+		for (QueueEntry e : entries) {
+			times.add(e.getStartTime());
+		}
+		return times;
+	}
+
+	private static List<Long> range(long first, int n) {
+		final ArrayList<Long> times = new ArrayList<Long>();
+		for (long i = first; i < first + n; ++i) {
+			times.add(i);
+		}
+		return times;
+	}
+
+	public void testTrim() {
+		final ScrobbleQueue q = new ScrobbleQueue();
+		final ScrobbleQueue.Cursor working = q.newCursor();
+		final ScrobbleQueue.Cursor stuck = q.newCursor();
+		q.addAll(entries(0, 10));
+
+		// The working target gets everything, but nothing can be reclaimed
+		// while the stuck one hasn't moved:
+		assertTrue(q.acknowledge(working, q.next(working, null, 10)).isEmpty());
+		assertEquals(10, q.size());
+
+		assertTrue(q.trim(stuck, 10).isEmpty());
+		assertEquals(range(0, 7), startTimes(q.trim(stuck, 3)));
+		assertEquals(3, q.getPending(stuck));
+		assertEquals(range(0, 7), startTimes(q.reclaim()));
+		assertEquals(3, q.size());
+		assertTrue(q.reclaim().isEmpty());
+
+		// It picks up from where it was trimmed to:
+		assertEquals(range(7, 3), startTimes(q.next(stuck, null, 10).entries));
+		assertEquals(range(7, 3), startTimes(q.trim(stuck, 0)));
+		assertEquals(0, q.getPending(stuck));
+		assertEquals(range(7, 3), startTimes(q.reclaim()));
+		assertEquals(0, q.size());
+	}
+
+	public void testTrimBehindAnotherCursor() {
+		final ScrobbleQueue q = new ScrobbleQueue();
+		final ScrobbleQueue.Cursor slow = q.newCursor();
+		final ScrobbleQueue.Cursor stuck = q.newCursor();
+		q.addAll(entries(0, 10));
+		q.acknowledge(slow, q.next(slow, null, 4));
+		// Only what the other target has acknowledged can be reclaimed:
+		assertEquals(8, q.trim(stuck, 2).size());
+		assertEquals(range(0, 4), startTimes(q.reclaim()));
+		assertEquals(6, q.size());
+		assertEquals(6, q.getPending(slow));
+		assertEquals(2, q.getPending(stuck));
+	}
+
+	public void testTwoCursors() {
+		final ScrobbleQueue q = new ScrobbleQueue();
+		final ScrobbleQueue.Cursor a = q.newCursor();
+		final ScrobbleQueue.Cursor b = q.newCursor();
+		assertNull(q.next(a, null, 10));
+		q.addAll(entries(0, 10));
+		assertEquals(10, q.getPending(a));
+		assertEquals(10, q.getPending(b));
+
+		// Claims follow on from each other, and don't move the cursor until
+		// they're acknowledged:
+		final ScrobbleQueue.Claim a1 = q.next(a, null, 4);
+		final ScrobbleQueue.Claim a2 = q.next(a, a1, 4);
+		assertEquals(range(0, 4), startTimes(a1.entries));
+		assertEquals(range(4, 4), startTimes(a2.entries));
+		assertEquals(10, q.getPending(a));
+		assertTrue(q.acknowledge(a, a1).isEmpty());
+		assertEquals(6, q.getPending(a));
+		assertEquals(10, q.size());
+
+		// The other cursor sees every entry, whatever the first has done:
+		final ScrobbleQueue.Claim b1 = q.next(b, null, 6);
+		assertEquals(range(0, 6), startTimes(b1.entries));
+		// Only what both have acknowledged is reclaimed:
+		assertEquals(range(0, 4), startTimes(q.acknowledge(b, b1)));
+		assertEquals(6, q.size());
+		assertEquals(range(4, 2), startTimes(q.acknowledge(a, a2)));
+		assertEquals(4, q.size());
+		assertEquals(2, q.getPending(a));
+		assertEquals(4, q.getPending(b));
+	}
+
+	public void testClaimAgainAfterFailure() {
+		final ScrobbleQueue q = new ScrobbleQueue();
+		final ScrobbleQueue.Cursor c = q.newCursor();
+		q.addAll(entries(0, 10));
+		final ScrobbleQueue.Claim first = q.next(c, null, 3);
+		q.acknowledge(c, first);
+		// This one fails, so it's never acknowledged:
+		q.next(c, q.next(c, first, 3), 3);
+
+		// The next scrobble starts from the cursor again, with the same
+		// entries in the same order, even in smaller batches:
+		final ScrobbleQueue.Claim retry = q.next(c, null, 2);
+		assertEquals(range(3, 2), startTimes(retry.entries));
+		assertEquals(range(5, 5), startTimes(q.next(c, retry, 10).entries));
+		assertNull(q.next(c, q.next(c, retry, 10), 10));
+		assertEquals(7, q.getPending(c));
+	}
+
+	public void testCursorAddedLater() {
+		final ScrobbleQueue q = new ScrobbleQueue();
+		final ScrobbleQueue.Cursor a = q.newCursor();
+		q.addAll(entries(0, 5));
+		q.acknowledge(a, q.next(a, null, 3));
+		// A new cursor starts from the oldest entry that hasn't been
+		// reclaimed:
+		final ScrobbleQueue.Cursor b = q.newCursor();
+		assertEquals(2, q.getPending(b));
+		assertEquals(range(3, 2), startTimes(q.next(b, null, 10).entries));
+	}
+
+	public void testSkip() {
+		final ScrobbleQueue q = new ScrobbleQueue();
+		final ScrobbleQueue.Cursor c = q.newCursor();
+		final List<QueueEntry> entries = entries(0, 5);
+		for (int i = 0; i < entries.size(); ++i) {
+			entries.get(i).setSequence(i + 1);
+		}
+		q.addAll(entries);
+		q.skip(c, 3);
+		assertEquals(2, q.getPending(c));
+		assertEquals(range(3, 2), startTimes(q.next(c, null, 10).entries));
+	}
+
+	/**
+	 * This logs how long it takes to drain queues of 1k up to 1M entries in
+	 * full batches, reading the counts after every batch as the service
+	 * does. The time per entry should stay about the same. Sizes that
+	 * wouldn't fit in this VM's heap are skipped.
+	 */
+	public void testDrainBenchmark() {
+		// Every entry shares one Track, so this is roughly an entry and its
+		// node:
+		final long bytesPerEntry = 100;
+		final Track t = new Track(-1, 'P', "Artist", "Track", 200000L,
+			null, null, null);
+		for (int n = 1000; n <= 1000000; n *= 10) {
+			final Runtime r = Runtime.getRuntime();
+			if (n * bytesPerEntry > r.maxMemory() / 2) {
+				Log.i(ScrobblerService.LOG_TAG, "Not draining " + n +
+					" entries, because they might not fit in memory.");
+				continue;
+			}
+			final ScrobbleQueue q = new ScrobbleQueue();
+			final ScrobbleQueue.Cursor c = q.newCursor();
+			for (int i = 0; i < n; ++i) {
+				q.add(new QueueEntry(t, i));
+			}
+
+			final long start = System.nanoTime();
+			ScrobbleQueue.Claim claim;
+			long counted = 0;
+			while ((claim = q.next(c, null,
+				ScrobblerService.MAX_SCROBBLE_TRACKS)) != null) {
+
+				q.acknowledge(c, claim);
+				counted += q.getPending(c) + q.size();
+			}
+			final long elapsed = System.nanoTime() - start;
+			assertEquals(0, q.size());
+			assertTrue(counted > 0);
+			Log.i(ScrobblerService.LOG_TAG, "Drained " + n + " entries in " +
+				elapsed / 1000000 + "ms (" + elapsed / n + "ns each).");
+		}
+	}
+}
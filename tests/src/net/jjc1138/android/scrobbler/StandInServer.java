@@ -0,0 +1,218 @@
+package net.jjc1138.android.scrobbler;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * A tiny HTTP/1.1 server on the loopback interface that stands in for a
+ * scrobbling server in tests. Connections are kept alive, each request is
+ * answered after a fixed latency, and the bodies of the requests are
+ * recorded (ungzipped) so that tests can check what was sent.
+ *
+ * Responses are taken from a queue that the test fills with respond(). When
+ * it's empty every request is answered with "OK".
+ */
+final class StandInServer {
+	static final class Response {
+		final int code;
+		final String body;
+
+		Response(int code, String body) {
+			this.code = code;
+			this.body = body;
+		}
+	}
+
+	private final ServerSocket server;
+	private final Thread acceptor;
+	private final List<Socket> sockets = new ArrayList<Socket>();
+	private final LinkedList<Response> responses = new LinkedList<Response>();
+	private final List<String> bodies = new ArrayList<String>();
+	private volatile long latency;
+	private volatile boolean closed = false;
+	private int connections = 0;
+
+	StandInServer(long latency) throws IOException {
+		this.latency = latency;
+		server = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+		acceptor = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				accept();
+			}
+		}, "StandInServer");
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	String getURL(String path) {
+		return "http://127.0.0.1:" + server.getLocalPort() + path;
+	}
+
+	void setLatency(long latency) {
+		this.latency = latency;
+	}
+
+	synchronized void respond(int code, String body) {
+		responses.add(new Response(code, body));
+	}
+
+	synchronized int getConnections() {
+		return connections;
+	}
+
+	/**
+	 * Returns the bodies of the requests that have been answered so far, in
+	 * the order that they were received.
+	 */
+	synchronized List<String> getBodies() {
+		return new ArrayList<String>(bodies);
+	}
+
+	void close() throws IOException {
+		closed = true;
+		server.close();
+		synchronized (this) {
+			for (Socket s : sockets) {
+				s.close();
+			}
+		}
+	}
+
+	private void accept() {
+		while (!closed) {
+			final Socket s;
+			try {
+				s = server.accept();
+			} catch (IOException e) {
+				return;
+			}
+			synchronized (this) {
+				++connections;
+				sockets.add(s);
+			}
+			final Thread t = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						serve(s);
+					} catch (IOException e) {
+						// The client went away, or we were closed.
+					} finally {
+						try {
+							s.close();
+						} catch (IOException e) {}
+					}
+				}
+			}, "StandInServer connection");
+			t.setDaemon(true);
+			t.start();
+		}
+	}
+
+	private synchronized Response nextResponse() {
+		return responses.isEmpty() ?
+			new Response(200, "OK\n") : responses.removeFirst();
+	}
+
+	private void serve(Socket s) throws IOException {
+		final InputStream in = new BufferedInputStream(s.getInputStream());
+		final OutputStream out = s.getOutputStream();
+		while (true) {
+			final String requestLine = readLine(in);
+			if (requestLine == null) {
+				return;
+			}
+			int length = 0;
+			boolean gzipped = false;
+			boolean close = false;
+			String header;
+			while ((header = readLine(in)) != null && header.length() != 0) {
+				final int colon = header.indexOf(':');
+				final String name = header.substring(0, colon).trim();
+				final String value = header.substring(colon + 1).trim();
+				if (name.equalsIgnoreCase("Content-Length")) {
+					length = Integer.parseInt(value);
+				} else if (name.equalsIgnoreCase("Content-Encoding")) {
+					gzipped = value.equalsIgnoreCase("gzip");
+				} else if (name.equalsIgnoreCase("Connection")) {
+					close = value.equalsIgnoreCase("close");
+				}
+			}
+			final byte[] body = new byte[length];
+			for (int read = 0; read < length; ) {
+				final int n = in.read(body, read, length - read);
+				if (n == -1) {
+					return;
+				}
+				read += n;
+			}
+
+			try {
+				Thread.sleep(latency);
+			} catch (InterruptedException e) {
+				return;
+			}
+			final Response r = nextResponse();
+			synchronized (this) {
+				bodies.add(gzipped ? gunzip(body) : new String(body, "UTF-8"));
+			}
+			final byte[] content = r.body.getBytes("UTF-8");
+			try {
+				out.write(("HTTP/1.1 " + r.code + " Stand-in\r\n" +
+					"Content-Type: text/plain; charset=utf-8\r\n" +
+					"Content-Length: " + content.length + "\r\n" +
+					"\r\n").getBytes("US-ASCII"));
+				out.write(content);
+				out.flush();
+			} catch (SocketException e) {
+				// The client gave up waiting.
+				return;
+			}
+			if (close) {
+				return;
+			}
+		}
+	}
+
+	private static String gunzip(byte[] body) throws IOException {
+		final GZIPInputStream in =
+			new GZIPInputStream(new ByteArrayInputStream(body));
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		final byte[] buffer = new byte[1024];
+		int n;
+		while ((n = in.read(buffer)) != -1) {
+			out.write(buffer, 0, n);
+		}
+		return out.toString("UTF-8");
+	}
+
+	// Returns null at the end of the stream.
+	private static String readLine(InputStream in) throws IOException {
+		final StringBuilder line = new StringBuilder();
+		int c;
+		while ((c = in.read()) != -1) {
+			if (c == '\n') {
+				final int end = line.length();
+				if (end > 0 && line.charAt(end - 1) == '\r') {
+					line.setLength(end - 1);
+				}
+				return line.toString();
+			}
+			line.append((char) c);
+		}
+		return line.length() == 0 ? null : line.toString();
+	}
+}
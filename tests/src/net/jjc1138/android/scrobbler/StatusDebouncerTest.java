@@ -0,0 +1,64 @@
+package net.jjc1138.android.scrobbler;
+
+import junit.framework.TestCase;
+import android.content.Intent;
+
+public class StatusDebouncerTest extends TestCase {
+	private static final long WINDOW = StatusDebouncer.DEFAULT_WINDOW;
+
+	public void testDuplicateWithinWindow() {
+		final StatusDebouncer d = new StatusDebouncer(WINDOW);
+		assertFalse(d.isDuplicate(StatusReplay.playing("X", "A", 200), 0));
+		d.accepted(StatusReplay.playing("X", "A", 200), 0);
+		assertTrue(d.isDuplicate(StatusReplay.playing("X", "A", 200), 1));
+		assertTrue(d.isDuplicate(
+			StatusReplay.playing("X", "A", 200), WINDOW - 1));
+	}
+
+	public void testWindowExpires() {
+		final StatusDebouncer d = new StatusDebouncer(WINDOW);
+		d.accepted(StatusReplay.playing("X", "A", 200), 0);
+		assertFalse(d.isDuplicate(StatusReplay.playing("X", "A", 200), WINDOW));
+	}
+
+	public void testDifferentExtras() {
+		final StatusDebouncer d = new StatusDebouncer(WINDOW);
+		d.accepted(StatusReplay.playing("X", "A", 200), 0);
+		assertFalse(d.isDuplicate(StatusReplay.stopped(), 1));
+		assertFalse(d.isDuplicate(StatusReplay.playing("Y", "A", 200), 1));
+		assertFalse(d.isDuplicate(StatusReplay.playing("X", "B", 200), 1));
+		assertFalse(d.isDuplicate(StatusReplay.playing("X", "A", 201), 1));
+		assertFalse(d.isDuplicate(StatusReplay.playing(null, "A", 200), 1));
+		assertFalse(d.isDuplicate(
+			StatusReplay.playing("X", "A", 200).putExtra("album", "Z"), 1));
+		assertFalse(d.isDuplicate(
+			StatusReplay.playing("X", "A", 200).putExtra("id", 5L), 1));
+		assertFalse(d.isDuplicate(StatusReplay.playing("X", "A", 200)
+			.putExtra(MusicStatusFetcher.FROM_MUSIC_STATUS_FETCHER, true), 1));
+	}
+
+	public void testOnlyComparedWithLastAccepted() {
+		final StatusDebouncer d = new StatusDebouncer(WINDOW);
+		d.accepted(StatusReplay.playing("X", "A", 200), 0);
+		d.accepted(StatusReplay.stopped(), 1);
+		assertFalse(d.isDuplicate(StatusReplay.playing("X", "A", 200), 2));
+		assertTrue(d.isDuplicate(StatusReplay.stopped(), 2));
+		assertEquals(2, d.getAccepted());
+	}
+
+	/**
+	 * Debouncing is only an optimization, so it mustn't change anything that
+	 * gets enqueued.
+	 */
+	public void testReplayDecisionsUnchanged() {
+		for (long seed = 1; seed <= 5; ++seed) {
+			final StatusReplay plain = new StatusReplay(false);
+			final StatusReplay debounced = new StatusReplay(true);
+			plain.playRandom(seed, 20000);
+			debounced.playRandom(seed, 20000);
+			assertTrue(debounced.getSuppressed() > 0);
+			assertEquals("Seed " + seed,
+				plain.getDecisions(), debounced.getDecisions());
+		}
+	}
+}
@@ -0,0 +1,207 @@
+package net.jjc1138.android.scrobbler;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import android.content.Intent;
+
+/**
+ * Replays music statuses through a PlayTracker in virtual time, handling them
+ * the way that ScrobblerService does, and records what gets enqueued. If
+ * debouncing is on then the statuses go through a StatusDebouncer first, as
+ * they do in the service.
+ */
+final class StatusReplay implements PlayTracker.Clock, PlayTracker.Scheduler,
+	PlayTracker.Listener {
+
+	static final long WAITING_TIME =
+		ScrobblerService.SCROBBLE_WAITING_TIME_MINUTES * 60 * 1000;
+
+	private long now = 1262304000000L; // 2010-01-01
+	private final PlayTracker tracker = new PlayTracker(this, this, this);
+	// This is null if we aren't debouncing:
+	private final StatusDebouncer debouncer;
+	private final ArrayList<String> decisions = new ArrayList<String>();
+	private int statuses = 0;
+
+	// The service only ever has one idle re-check pending, because it's a
+	// keyed timer.
+	private Runnable pending = null;
+	private long pendingTime;
+
+	private final Runnable recheck = new Runnable() {
+		@Override
+		public void run() {
+			stopIfIdle();
+		}
+	};
+
+	StatusReplay(boolean debounce) {
+		debouncer = debounce ?
+			new StatusDebouncer(StatusDebouncer.DEFAULT_WINDOW) : null;
+	}
+
+	@Override
+	public long currentTimeMillis() {
+		return now;
+	}
+
+	@Override
+	public void schedule(Runnable task, long delayMillis) {
+		pending = task;
+		pendingTime = now + delayMillis;
+	}
+
+	@Override
+	public void enqueued(QueueEntry entry, int reason) {
+		decisions.add(reason + " " + entry.getTrack() + " " +
+			entry.getStartTime());
+	}
+
+	@Override
+	public void started(QueueEntry entry) {}
+
+	@Override
+	public void log(String message) {}
+
+	/**
+	 * Each decision is the reason, the track and its start time.
+	 */
+	List<String> getDecisions() {
+		return decisions;
+	}
+
+	int getStatuses() {
+		return statuses;
+	}
+
+	long getSuppressed() {
+		return debouncer == null ? 0 : debouncer.getSuppressed();
+	}
+
+	/**
+	 * Moves the clock forward, running the idle re-check if it comes due.
+	 */
+	void advance(long millis) {
+		final long until = now + millis;
+		while (pending != null && pendingTime <= until) {
+			final Runnable task = pending;
+			pending = null;
+			now = pendingTime;
+			task.run();
+		}
+		now = until;
+	}
+
+	static Intent playing(String artist, String track, int secs) {
+		return new Intent(StatusBroadcastReceiver.ACTION_MUSIC_STATUS)
+			.putExtra("playing", true)
+			.putExtra("artist", artist)
+			.putExtra("track", track)
+			.putExtra("secs", secs);
+	}
+
+	static Intent stopped() {
+		return new Intent(StatusBroadcastReceiver.ACTION_MUSIC_STATUS)
+			.putExtra("playing", false);
+	}
+
+	// This is what ScrobblerService.handleStart() does with a status.
+	void status(Intent i) {
+		++statuses;
+		if (debouncer != null && debouncer.isDuplicate(i, now) &&
+			tracker.repeatIsNoop(i.getBooleanExtra("playing", false))) {
+
+			debouncer.suppressed();
+		} else {
+			if (debouncer != null) {
+				debouncer.accepted(i, now);
+			}
+			handle(i);
+		}
+		stopIfIdle();
+	}
+
+	// This is ScrobblerService.handleIntent(), without the MediaStore.
+	private void handle(Intent i) {
+		if (i.getBooleanExtra("playing", false)) {
+			Track t = null;
+			try {
+				t = new Track(i, null);
+			} catch (InvalidMetadataException e) {}
+			tracker.playing(t);
+		} else {
+			tracker.stopped();
+		}
+	}
+
+	// This is the part of ScrobblerService.stopIfIdle() that decides whether
+	// to enqueue a paused track.
+	private void stopIfIdle() {
+		if (tracker.isPlaying()) {
+			return;
+		}
+		if (!tracker.waitingForIdle(WAITING_TIME, recheck)) {
+			tracker.enqueueIfIdle();
+		}
+	}
+
+	// Players send the same status several times in quick succession.
+	private void burst(Random r, Intent i) {
+		final int n = 1 + r.nextInt(3);
+		for (int k = 0; k < n; ++k) {
+			status(i);
+			advance(r.nextInt(500));
+		}
+	}
+
+	/**
+	 * Replays at least n statuses from a pseudo-random listening session,
+	 * which is the same every time for the same seed.
+	 */
+	void playRandom(long seed, int n) {
+		final Random r = new Random(seed);
+		final int tracks = 20;
+		int current = 0;
+		while (statuses < n) {
+			final int secs = 30 + (current * 37) % 330;
+			final Intent playing = playing(
+				"Artist " + (current % 7), "Track " + current, secs);
+			burst(r, playing);
+			final int choice = r.nextInt(100);
+			if (choice < 40) {
+				// Play it to the end, and let the next one start.
+				advance(secs * 1000L);
+				current = r.nextInt(tracks);
+			} else if (choice < 60) {
+				// Skip part way through.
+				advance(r.nextInt(secs * 1000));
+				current = r.nextInt(tracks);
+			} else if (choice < 75) {
+				// Pause for a while, and then carry on.
+				advance(r.nextInt(secs * 1000));
+				burst(r, stopped());
+				advance(r.nextInt(10 * 60 * 1000));
+			} else if (choice < 85) {
+				// Stop, and go away.
+				advance(r.nextInt(secs * 1000));
+				burst(r, stopped());
+				advance(WAITING_TIME + r.nextInt(30 * 60 * 1000));
+				current = r.nextInt(tracks);
+			} else if (choice < 95) {
+				// Something that we can't scrobble.
+				advance(r.nextInt(secs * 1000));
+				burst(r, playing(null, "Unknown", secs));
+				advance(r.nextInt(secs * 1000));
+				current = r.nextInt(tracks);
+			} else {
+				// Play it to the end and stop.
+				advance(secs * 1000L);
+				burst(r, stopped());
+				advance(r.nextInt(5 * 60 * 1000));
+				current = r.nextInt(tracks);
+			}
+		}
+	}
+}
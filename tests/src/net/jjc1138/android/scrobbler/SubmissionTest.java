@@ -0,0 +1,145 @@
+package net.jjc1138.android.scrobbler;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpPost;
+
+import android.util.Log;
+
+/**
+ * This drains a queue into a StandInServer the way that a ScrobbleTask does:
+ * one batch at a time, in order, each one prepared after the last has been
+ * acknowledged, and all of them on the same connection. The task itself
+ * needs a running service, so the loop here is a copy of its submission
+ * path.
+ */
+public class SubmissionTest extends TestCase {
+	private static final String SESSION = "session";
+	private static final long LATENCY = 20;
+
+	private StandInServer server;
+	private HttpTransport transport;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		server = new StandInServer(LATENCY);
+		transport = new HttpTransport(5000, 5000);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		transport.shutdown();
+		server.close();
+		super.tearDown();
+	}
+
+	private static List<QueueEntry> entries(int n) {
+		final ArrayList<QueueEntry> entries = new ArrayList<QueueEntry>();
+		for (int i = 0; i < n; ++i) {
+			entries.add(new QueueEntry(new Track(-1, 'P', "Artist",
+				"Track " + i, 200000L, null, null, null), 1000L * i));
+		}
+		return entries;
+	}
+
+	private String post(FormEncoder body) throws IOException {
+		final HttpPost post = new HttpPost(server.getURL("/submit"));
+		post.setEntity(body.toEntity());
+		final HttpResponse r = transport.execute(post);
+		final HttpEntity e = r.getEntity();
+		try {
+			return r.getStatusLine().getStatusCode() == 200 ?
+				new ResponseLines(e).next() : null;
+		} finally {
+			e.consumeContent();
+		}
+	}
+
+	// Submits everything after the cursor, and returns false if a batch
+	// wasn't accepted.
+	private boolean drain(ScrobbleQueue q, ScrobbleQueue.Cursor c,
+		FormEncoder f, int batchSize) throws IOException {
+
+		ScrobbleQueue.Claim batched = null;
+		ScrobbleQueue.Claim claim;
+		while ((claim = q.next(c, batched, batchSize)) != null) {
+			batched = claim;
+			RequestBodies.startSubmission(f, SESSION);
+			for (int i = 0; i < claim.entries.size(); ++i) {
+				RequestBodies.appendSubmission(f, i, claim.entries.get(i));
+			}
+			final String status = post(f);
+			if (status == null || !status.startsWith("OK")) {
+				return false;
+			}
+			q.acknowledge(c, claim);
+		}
+		return true;
+	}
+
+	private static List<String> expectedBodies(List<QueueEntry> entries,
+		int batchSize) {
+
+		final ArrayList<String> bodies = new ArrayList<String>();
+		final FormEncoder f = new FormEncoder();
+		for (int start = 0; start < entries.size(); start += batchSize) {
+			RequestBodies.startSubmission(f, SESSION);
+			final int end = Math.min(entries.size(), start + batchSize);
+			for (int i = start; i < end; ++i) {
+				RequestBodies.appendSubmission(f, i - start, entries.get(i));
+			}
+			bodies.add(f.toString());
+		}
+		return bodies;
+	}
+
+	public void testDrain() throws IOException {
+		final int n = 500;
+		final int batchSize = ScrobblerService.MAX_SCROBBLE_TRACKS;
+		final List<QueueEntry> entries = entries(n);
+		final ScrobbleQueue q = new ScrobbleQueue();
+		final ScrobbleQueue.Cursor c = q.newCursor();
+		q.addAll(entries);
+
+		final long start = System.nanoTime();
+		assertTrue(drain(q, c, new FormEncoder(), batchSize));
+		final long elapsed = System.nanoTime() - start;
+
+		// Every entry was sent once, in order, and then forgotten:
+		assertEquals(expectedBodies(entries, batchSize), server.getBodies());
+		assertEquals(0, q.size());
+		assertEquals(1, server.getConnections());
+		assertEquals(n / batchSize - 1, transport.getReusedConnections());
+		Log.i(ScrobblerService.LOG_TAG, "Drained " + n + " track(s) in " +
+			server.getBodies().size() + " request(s) with " + LATENCY +
+			"ms latency in " + elapsed / 1000000 + "ms.");
+	}
+
+	public void testDrainAfterFailure() throws IOException {
+		final int batchSize = 10;
+		final List<QueueEntry> entries = entries(30);
+		final ScrobbleQueue q = new ScrobbleQueue();
+		final ScrobbleQueue.Cursor c = q.newCursor();
+		q.addAll(entries);
+		final FormEncoder f = new FormEncoder();
+
+		// The second batch fails, so the next scrobble starts again from it:
+		server.respond(200, "OK\n");
+		server.respond(200, "FAILED Try again\n");
+		assertFalse(drain(q, c, f, batchSize));
+		assertEquals(20, q.size());
+		assertTrue(drain(q, c, f, batchSize));
+		assertEquals(0, q.size());
+
+		final List<String> expected = expectedBodies(entries, batchSize);
+		expected.add(1, expected.get(1));
+		assertEquals(expected, server.getBodies());
+	}
+}
@@ -0,0 +1,164 @@
+package net.jjc1138.android.scrobbler;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class TrackCodecTest extends TestCase {
+	private static final long START = 1262304000000L;
+
+	// Every combination of the optional fields, with and without a MediaStore
+	// ID:
+	private static List<Track> tracks() {
+		final ArrayList<Track> tracks = new ArrayList<Track>();
+		for (int present = 0; present < 16; ++present) {
+			for (long id : new long[] { -1, 0, 12345678901L }) {
+				tracks.add(new Track(id, 'P',
+					"Bj\u00f6rk", "J\u00f3ga \ud83c\udfb5",
+					(present & 1) != 0 ? 305000L : null,
+					(present & 2) != 0 ? "Homogenic \u5742\u672c" : null,
+					(present & 4) != 0 ? 2 : null,
+					(present & 8) != 0 ?
+						"0e4b6a5c-3f66-4c0e-9d39-9a6f5a7c7e2a" : null));
+			}
+		}
+		tracks.add(new Track(-1, 'R', "", "", 0L, "", 0, ""));
+		tracks.add(new Track(-1, 'U', "A", "B",
+			Long.MAX_VALUE, null, Integer.MIN_VALUE, null));
+		return tracks;
+	}
+
+	// Track.equals() only compares IDs when there is one, so we compare
+	// every field:
+	private static void assertSameTrack(Track expected, Track actual) {
+		assertNotNull(actual);
+		assertEquals(expected, actual);
+		assertEquals(expected.getID(), actual.getID());
+		assertEquals((Object) expected.getSource(), actual.getSource());
+		assertEquals(expected.getArtist(), actual.getArtist());
+		assertEquals(expected.getTrack(), actual.getTrack());
+		assertEquals(expected.getMillis(), actual.getMillis());
+		assertEquals(expected.getAlbum(), actual.getAlbum());
+		assertEquals(expected.getTracknumber(), actual.getTracknumber());
+		assertEquals(expected.getMbtrackid(), actual.getMbtrackid());
+		assertEquals(expected.hashCode(), actual.hashCode());
+	}
+
+	private static byte[] serialize(Object o) throws IOException {
+		final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		final ObjectOutputStream oos = new ObjectOutputStream(bos);
+		oos.writeObject(o);
+		oos.close();
+		return bos.toByteArray();
+	}
+
+	private static void assertUndecodable(byte[] data) {
+		try {
+			TrackCodec.decodeEntry(data);
+			fail("Decoded " + Arrays.toString(data));
+		} catch (IOException e) {}
+		try {
+			TrackCodec.decodeEntryLazily(data).loadTrack();
+			fail("Lazily decoded " + Arrays.toString(data));
+		} catch (IOException e) {}
+	}
+
+	public void testRoundTrip() throws IOException {
+		for (long start : new long[] { START, 0, -1, Long.MAX_VALUE }) {
+			for (Track t : tracks()) {
+				final byte[] data =
+					TrackCodec.encodeEntry(new QueueEntry(t, start));
+				assertFalse(TrackCodec.isSerialized(data));
+				final QueueEntry e = TrackCodec.decodeEntry(data);
+				assertEquals(start, e.getStartTime());
+				assertSameTrack(t, e.getTrack());
+			}
+		}
+	}
+
+	public void testLazyDecoding() throws IOException {
+		for (Track t : tracks()) {
+			final QueueEntry e = TrackCodec.decodeEntryLazily(
+				TrackCodec.encodeEntry(new QueueEntry(t, START)));
+			assertEquals(START, e.getStartTime());
+			assertNull(e.getTrack());
+			e.loadTrack();
+			final Track loaded = e.getTrack();
+			assertSameTrack(t, loaded);
+			// Loading it again changes nothing:
+			e.loadTrack();
+			assertSame(loaded, e.getTrack());
+		}
+	}
+
+	public void testBadData() throws IOException {
+		// This one has every optional field:
+		final byte[] data = TrackCodec.encodeEntry(new QueueEntry(
+			tracks().get(tracks().size() - 3), START));
+
+		final byte[] badVersion = data.clone();
+		badVersion[0] = TrackCodec.VERSION + 1;
+		assertUndecodable(badVersion);
+
+		// Every truncation of it is either an incomplete string or varint,
+		// or is missing a field:
+		for (int length = 0; length < data.length; ++length) {
+			final byte[] truncated = new byte[length];
+			System.arraycopy(data, 0, truncated, 0, length);
+			assertUndecodable(truncated);
+		}
+
+		// A string that claims to be longer than the data:
+		assertUndecodable(new byte[] {
+			TrackCodec.VERSION, 0, 0, 1, 'P', 100, 'a' });
+		// A varint that never ends:
+		final byte[] varint = new byte[12];
+		varint[0] = TrackCodec.VERSION;
+		Arrays.fill(varint, 1, varint.length, (byte) 0xff);
+		assertUndecodable(varint);
+	}
+
+	public void testLegacyTrack() throws IOException {
+		for (Track t : tracks()) {
+			final byte[] data = serialize(t);
+			assertTrue(TrackCodec.isSerialized(data));
+			assertSameTrack(t, TrackCodec.decodeTrack(data));
+		}
+	}
+
+	public void testLegacyQueueEntry() throws Exception {
+		// The last playing track was stored as a serialized QueueEntry:
+		final Track t = tracks().get(0);
+		final byte[] data = serialize(new QueueEntry(t, START));
+		assertTrue(TrackCodec.isSerialized(data));
+		final ObjectInputStream ois =
+			new ObjectInputStream(new ByteArrayInputStream(data));
+		final QueueEntry e = (QueueEntry) ois.readObject();
+		ois.close();
+		assertEquals(START, e.getStartTime());
+		assertSameTrack(t, e.getTrack());
+
+		// It isn't a Track, though:
+		try {
+			TrackCodec.decodeTrack(data);
+			fail();
+		} catch (IOException expected) {}
+	}
+
+	public void testDecodeTrackNeedsSerializedData() {
+		assertFalse(TrackCodec.isSerialized(new byte[0]));
+		assertFalse(TrackCodec.isSerialized(new byte[] { (byte) 0xac }));
+		try {
+			TrackCodec.decodeTrack(TrackCodec.encodeEntry(
+				new QueueEntry(tracks().get(0), START)));
+			fail();
+		} catch (IOException expected) {}
+	}
+}